@@ -0,0 +1,144 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Benchmark checking that the lookup and scan paths meant to be allocation free stay so. Every path runs over a
+ * loaded tree, first to warm up then measured through the allocated bytes counter of the current thread, and fails if
+ * it allocates more than MAX_BYTES_PER_OP bytes per lookup or per visited pair on average.
+ *
+ * <p>Usage: AllocationBenchmark [keys] [rounds]. Needs a JVM providing com.sun.management.ThreadMXBean.
+ */
+public class AllocationBenchmark {
+    // Allowed average allocation per operation, room for the few objects the counter itself may allocate.
+    private static final double MAX_BYTES_PER_OP = 0.1;
+    // Rounds run before measuring, so the paths are compiled and escape analysis applies.
+    private static final int WARMUP_ROUNDS = 50;
+    // Number of pairs visited after every key by the getNKeyValPair path.
+    private static final int PAIRS_PER_VISIT = 8;
+
+    // Counter of the bytes allocated by a thread.
+    private final com.sun.management.ThreadMXBean threads;
+    // Tree under test.
+    private final BPlusTree<String, String> tree;
+    // Keys inside the tree, created up front so the measured loops do not build them.
+    private final String[] keys;
+    // Number of measured rounds over all the keys.
+    private final int rounds;
+    // Holder filled by findInto.
+    private final MutablePair<String, String> holder;
+    // Visitor counting the visited pairs.
+    private final EntryVisitor<String, String> visitor;
+    // Number of pairs seen by visitor.
+    private long visited;
+
+    /**
+     * Create a new AllocationBenchmark over a tree of keyCount pairs.
+     *
+     * @param keyCount number of pairs inside the tree
+     * @param rounds   number of measured rounds over all the keys
+     */
+    public AllocationBenchmark(int keyCount, int rounds) {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            throw new IllegalStateException("This JVM does not count allocated bytes per thread");
+        }
+        this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        this.threads.setThreadAllocatedMemoryEnabled(true);
+        this.tree = new BPlusTree<>(2, 3, 8, 16);
+        this.keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            this.keys[i] = "key" + i;
+            this.tree.insert(this.keys[i], "value" + i);
+        }
+        this.rounds = rounds;
+        this.holder = new MutablePair<>();
+        this.visitor = (key, value) -> {
+            this.visited++;
+            return true;
+        };
+    }
+
+    public static void main(String[] args) {
+        int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        AllocationBenchmark benchmark = new AllocationBenchmark(keyCount, rounds);
+        benchmark.check("find", benchmark::runFind);
+        benchmark.check("findInto", benchmark::runFindInto);
+        benchmark.check("getNKeyValPair visitor", benchmark::runGetNKeyValPair);
+        benchmark.check("forEach", benchmark::runForEach);
+    }
+
+    /**
+     * Warms a path up, measures it and fails if it allocates.
+     *
+     * @param name name of the path
+     * @param path runs the path once over all the keys and returns its number of operations
+     */
+    private void check(String name, Path path) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            path.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long operations = 0;
+        long before = this.threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < this.rounds; i++) {
+            operations += path.run();
+        }
+        long allocated = this.threads.getThreadAllocatedBytes(thread) - before;
+        double perOp = (double) allocated / Math.max(1, operations);
+        System.out.printf("%-24s %12d ops %10d bytes %8.4f bytes/op%n", name, operations, allocated, perOp);
+        if (perOp > MAX_BYTES_PER_OP) {
+            throw new AssertionError(name + " allocates " + perOp + " bytes per operation");
+        }
+    }
+
+    /**
+     * @return number of lookups.
+     */
+    private long runFind() {
+        for (String key : this.keys) {
+            if (this.tree.find(key) == null) throw new AssertionError("Missing " + key);
+        }
+        return this.keys.length;
+    }
+
+    /**
+     * @return number of lookups.
+     */
+    private long runFindInto() {
+        for (String key : this.keys) {
+            if (!this.tree.findInto(key, this.holder)) throw new AssertionError("Missing " + key);
+        }
+        return this.keys.length;
+    }
+
+    /**
+     * @return number of visited pairs.
+     */
+    private long runGetNKeyValPair() {
+        long start = this.visited;
+        for (String key : this.keys) {
+            this.tree.getNKeyValPair(key, PAIRS_PER_VISIT, this.visitor);
+        }
+        return this.visited - start;
+    }
+
+    /**
+     * @return number of visited pairs.
+     */
+    private long runForEach() {
+        long start = this.visited;
+        this.tree.forEach(null, null, this.visitor);
+        return this.visited - start;
+    }
+
+    /**
+     * Path under test.
+     */
+    private interface Path {
+
+        /**
+         * @return number of operations done.
+         */
+        long run();
+    }
+}
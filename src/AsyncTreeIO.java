@@ -0,0 +1,314 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class AsyncTreeIO implements AutoCloseable {
+    // Logger for the executor fallback.
+    private static final Logger LOGGER = Logger.getLogger(AsyncTreeIO.class.getName());
+    // Number of lines or pairs between two progress reports.
+    private static final int PROGRESS_INTERVAL = 1024;
+
+    // Executor running the loads and saves.
+    private final ExecutorService executor;
+
+    /**
+     * Listener of the progress of a load or save. Called from the I/O thread, so Swing listeners have to hand the
+     * update over to the event dispatch thread.
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param done  amount of work done, bytes for load and pairs for save
+         * @param total total amount of work
+         */
+        void onProgress(long done, long total);
+    }
+
+    /**
+     * Create a new AsyncTreeIO running on virtual threads if the JVM has them, otherwise on daemon threads.
+     */
+    public AsyncTreeIO() {
+        this(newExecutor("tree-io"));
+    }
+
+    /**
+     * Create a new AsyncTreeIO.
+     *
+     * @param executor executor running the loads and saves, shut down by close
+     */
+    public AsyncTreeIO(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Loads the data from file into the tree without blocking the caller. The tree must not be used by other threads
+     * until the returned future completes. A cancel request accepted by requestCancel stops the load after the current
+     * line, keeping the pairs loaded so far, so callers which must not see a partial load should load into a new tree
+     * and only use it once the future succeeded. The future only completes as cancelled once the I/O thread no longer
+     * touches the tree.
+     *
+     * @param filePath location of the file to load data from
+     * @param tree     BPlusTree into which data is loaded
+     * @param listener listener of the number of bytes loaded, null for none
+     * @return future of the number of loaded pairs.
+     */
+    public IOFuture load(String filePath, BPlusTree<String, String> tree, ProgressListener listener) {
+        IOFuture future = new IOFuture();
+        this.executor.execute(() -> {
+            try {
+                Path path = Paths.get(Utils.getAbsoluteFilePath(filePath));
+                long total = Files.size(path);
+                int loaded = 0;
+                try (CountingInputStream in = new CountingInputStream(Files.newInputStream(path));
+                     BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (future.isCancelRequested()) {
+                            future.stop();
+                            return;
+                        }
+                        Pair<String, String> pair = Utils.parseLine(line);
+                        tree.insert(pair.getKey(), pair.getVal());
+                        // Bytes the reader consumed, ahead of the parsed lines by at most its buffer.
+                        if (++loaded % PROGRESS_INTERVAL == 0) report(listener, Math.min(in.count, total), total);
+                    }
+                }
+                tree.rebuildNegativeLookupFilter();
+                if (!future.commit()) {
+                    future.stop();
+                    return;
+                }
+                report(listener, total, total);
+                future.complete(loaded);
+            } catch (Exception e) {
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Saves BPlusTree into the file without blocking the caller. The tree must not be modified by other threads until
+     * the returned future completes. Pairs are written to a temporary file which replaces the file only once every
+     * pair is written, so a save whose cancel request was accepted or which failed leaves the file untouched.
+     *
+     * @param filePath location of the file to store BPlusTree
+     * @param tree     A BPlusTree to store into the file.
+     * @param listener listener of the number of pairs saved, null for none
+     * @return future of the number of saved pairs.
+     */
+    public IOFuture save(String filePath, BPlusTree<String, String> tree, ProgressListener listener) {
+        IOFuture future = new IOFuture();
+        this.executor.execute(() -> {
+            Path temporary = null;
+            try {
+                Path path = Paths.get(Utils.getAbsoluteFilePath(filePath));
+                temporary = Paths.get(path + ".tmp");
+                int total = tree.size();
+                int saved = 0;
+                try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                    for (BPlusTree<String, String>.LeafNode leaf = tree.getLeftLeafNode();
+                         leaf != null; leaf = leaf.right) {
+                        if (future.isCancelRequested()) break;
+                        for (int i = 0; i < leaf.degree; i++) {
+                            writer.write(Utils.formatLine(leaf.keys.get(i), leaf.values.get(i)));
+                            if (++saved % PROGRESS_INTERVAL == 0) report(listener, saved, total);
+                        }
+                    }
+                }
+                if (!future.commit()) {
+                    Files.deleteIfExists(temporary);
+                    future.stop();
+                    return;
+                }
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                report(listener, total, total);
+                future.complete(saved);
+            } catch (Exception e) {
+                deleteQuietly(temporary);
+                future.fail(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Shuts the executor down. Running loads and saves still complete.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+    }
+
+    /**
+     * @param listener listener to call, may be null
+     * @param done     amount of work done
+     * @param total    total amount of work
+     */
+    private static void report(ProgressListener listener, long done, long total) {
+        if (listener != null) listener.onProgress(done, total);
+    }
+
+    /**
+     * @param path file to delete, may be null
+     */
+    private static void deleteQuietly(Path path) {
+        if (path == null) return;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not delete " + path, e);
+        }
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task on JVMs that have them. Older JVMs get a cached pool
+     * of daemon threads, so pending I/O never keeps the application alive.
+     *
+     * @param threadName name of the platform threads
+     * @return executor for blocking I/O tasks.
+     */
+    static ExecutorService newExecutor(String threadName) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.fine("Virtual threads are not available, using platform threads");
+        }
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Future of a load or save. Cancelling is a request to the I/O thread, made by requestCancel: the I/O thread
+     * cancels the future itself once it stopped, so dependent stages never run while the tree is still being loaded
+     * or saved. Once a request is accepted the future always completes as cancelled.
+     */
+    public static class IOFuture extends CompletableFuture<Integer> {
+        // States of the I/O thread.
+        private static final int RUNNING = 0;
+        private static final int CANCEL_REQUESTED = 1;
+        private static final int COMMITTING = 2;
+
+        // RUNNING until either requestCancel or commit wins.
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+        /**
+         * Asks the I/O thread to stop. Accepted only while the load or save can still be undone.
+         *
+         * @return True if the request was accepted and the future will complete as cancelled otherwise false.
+         */
+        public boolean requestCancel() {
+            return this.state.compareAndSet(RUNNING, CANCEL_REQUESTED) || this.state.get() == CANCEL_REQUESTED;
+        }
+
+        /**
+         * Does not cancel the future right away, since the I/O thread may still be using the tree. Use requestCancel.
+         *
+         * @return false, the future is not cancelled by this call.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            requestCancel();
+            return false;
+        }
+
+        /**
+         * @return True if a cancel request was accepted otherwise false.
+         */
+        private boolean isCancelRequested() {
+            return this.state.get() == CANCEL_REQUESTED;
+        }
+
+        /**
+         * Called by the I/O thread right before the step which cannot be undone. Cancel requests are refused after it.
+         *
+         * @return True if the I/O thread may go on otherwise false, when it has to stop.
+         */
+        private boolean commit() {
+            return this.state.compareAndSet(RUNNING, COMMITTING);
+        }
+
+        /**
+         * Cancels the future, called by the I/O thread once it stopped.
+         */
+        private void stop() {
+            super.cancel(false);
+        }
+
+        /**
+         * Completes the future with the error, or as cancelled if a cancel request was accepted before.
+         *
+         * @param error error of the I/O thread
+         */
+        private void fail(Throwable error) {
+            if (commit() || this.state.get() == COMMITTING) {
+                completeExceptionally(error);
+            } else {
+                stop();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        // Number of bytes read so far.
+        private volatile long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) this.count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) this.count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * @param error error a load or save completed with
+     * @return True if the load or save was cancelled.
+     */
+    public static boolean isCancelled(Throwable error) {
+        Throwable cause = error;
+        while (cause != null && !(cause instanceof CancellationException)) {
+            cause = cause.getCause();
+        }
+        return cause != null;
+    }
+}
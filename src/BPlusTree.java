@@ -1,8 +1,37 @@
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class BPlusTree<K extends Comparable<K>, V> {
 
+    // Logger for lookup and remove misses. Misses are only logged at FINE level.
+    private static final Logger LOGGER = Logger.getLogger(BPlusTree.class.getName());
+    // Minimum number of keys negative lookup filter is sized for.
+    private static final int MIN_FILTER_CAPACITY = 1024;
+    // Returned by findBuffered when the key is not inside the tree.
+    private static final Object NOT_FOUND = new Object();
+    // Estimated bytes of a node and its lists, without their element arrays.
+    private static final int NODE_BYTES = 96;
+    // Estimated bytes of a reference inside an element array.
+    private static final int REFERENCE_BYTES = 4;
+    // Estimated bytes of a value block and the headers of its two arrays.
+    private static final int VALUE_BLOCK_BYTES = 64;
+
     // minimum number of nodes internal node can contain. Minimum 1.
     private final int internalNodeMinDegree;
     // maximum number of nodes internal node can contain. Minimum 1.
@@ -25,6 +54,34 @@ public class BPlusTree<K extends Comparable<K>, V> {
     private int internalNodeSplits;
     // Number of leaf node splits.
     private int leafNodeSplits;
+    // Number of compactions.
+    private int compactions;
+    // Estimated number of bytes reclaimed by all the compactions.
+    private long reclaimedBytes;
+    // Number of find calls which did not find the key.
+    private long findMisses;
+    // Number of remove calls which did not find the key.
+    private long removeMisses;
+    // Optional filter to answer find of absent keys without descending the tree. Null if disabled.
+    private BloomFilter<K> negativeLookupFilter;
+    // False positive rate used when (re)building negativeLookupFilter.
+    private double negativeLookupFalsePositiveRate;
+    // Number of find calls answered by negativeLookupFilter alone.
+    private long filteredMisses;
+    // Optional bounded cache of hot keys in front of the tree. Null if disabled.
+    private LookupCache<K, V> lookupCache;
+    // Whether leaf nodes keep one byte hash fingerprint per key for point lookups.
+    private boolean leafFingerprints;
+    // Codec packing the values of every leaf node into a single value block. Null if values are kept as objects.
+    private ValueCodec<V> valueCodec;
+    // Number of messages an InternalNode buffers before flushing them to its childs. 0 if write buffering is disabled.
+    private int writeBufferCapacity;
+    // Number of messages buffered inside InternalNodes and not yet applied to leaf nodes.
+    private int bufferedMessages;
+    // Secondary indexes kept consistent with the pairs inside the leaf nodes.
+    private final List<SecondaryIndex<K, V, ?>> secondaryIndexes;
+    // Path of the last insert descent, reused so inserts do not allocate a new stack.
+    private final Path path;
 
     /**
      * Create a new BPlusTree.
@@ -49,6 +106,19 @@ public class BPlusTree<K extends Comparable<K>, V> {
         this.internalNodeSplits = 0;
         this.leafNodeFusions = 0;
         this.leafNodeSplits = 0;
+        this.compactions = 0;
+        this.reclaimedBytes = 0;
+        this.findMisses = 0;
+        this.removeMisses = 0;
+        this.negativeLookupFilter = null;
+        this.filteredMisses = 0;
+        this.lookupCache = null;
+        this.leafFingerprints = false;
+        this.valueCodec = null;
+        this.writeBufferCapacity = 0;
+        this.bufferedMessages = 0;
+        this.secondaryIndexes = new ArrayList<>();
+        this.path = new Path();
     }
 
     /**
@@ -100,6 +170,41 @@ public class BPlusTree<K extends Comparable<K>, V> {
         return leafNodeSplits;
     }
 
+    /**
+     * @return number of compactions.
+     */
+    public int getCompactions() {
+        return compactions;
+    }
+
+    /**
+     * @return estimated number of bytes reclaimed by all the compactions.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    /**
+     * @return number of find calls which did not find the key.
+     */
+    public long getFindMisses() {
+        return findMisses;
+    }
+
+    /**
+     * @return number of remove calls which did not find the key.
+     */
+    public long getRemoveMisses() {
+        return removeMisses;
+    }
+
+    /**
+     * @return number of find calls answered by the negative lookup filter without descending the tree.
+     */
+    public long getFilteredMisses() {
+        return filteredMisses;
+    }
+
     /**
      * @return number of total fusions.
      */
@@ -121,11 +226,120 @@ public class BPlusTree<K extends Comparable<K>, V> {
      * @return Value if key is found otherwise null
      */
     public V find(K key) {
-        V val = this.root.find(key);
-        if (val == null) System.out.println("Value not found");
+        if (this.lookupCache != null) {
+            V cached = this.lookupCache.get(key);
+            if (cached != null) return cached;
+        }
+        if (this.negativeLookupFilter != null && !this.negativeLookupFilter.mightContain(key)) {
+            filteredMisses++;
+            findMisses++;
+            return null;
+        }
+        V val;
+        if (this.writeBufferCapacity > 0) {
+            Object found = findBuffered(key);
+            val = found == NOT_FOUND ? null : castValue(found);
+        } else {
+            LeafNode leaf = findLeaf(key);
+            val = leaf.find(key);
+            if (val == null && (leaf = leftLeafWithKey(leaf, key)) != null) {
+                val = leaf.find(key);
+            }
+        }
+        if (val == null) {
+            findMisses++;
+            if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Value not found: " + key);
+        } else if (this.lookupCache != null) {
+            this.lookupCache.put(key, val);
+        }
         return val;
     }
 
+    /**
+     * Finds the key.
+     *
+     * @param key key to look for
+     * @return Value wrapped in Optional if key is found otherwise empty Optional
+     */
+    public Optional<V> findOptional(K key) {
+        return Optional.ofNullable(find(key));
+    }
+
+    /**
+     * Finds the key and fills the holder with the pair, without allocating a result object. The holder can be reused
+     * for any number of lookups.
+     *
+     * @param key    key to look for
+     * @param holder holder to fill, cleared if the key is not found
+     * @return True if key is found otherwise false.
+     */
+    public boolean findInto(K key, MutablePair<K, V> holder) {
+        V val = find(key);
+        if (val == null) {
+            holder.clear();
+            return false;
+        }
+        holder.set(key, val);
+        return true;
+    }
+
+    /**
+     * Visits N pairs from key (inclusive) in key order, without allocating a Pair per result.
+     *
+     * @param key     key to search from
+     * @param n       number of pairs to visit after key
+     * @param visitor visitor called for every pair, returning false stops the scan
+     * @return number of pairs visited.
+     */
+    public int getNKeyValPair(K key, int n, EntryVisitor<K, V> visitor) {
+        flushWriteBuffers();
+        LeafNode leaf = findLeaf(key);
+        int i = leaf.indexOf(key);
+        if (i < 0 && (leaf = leftLeafWithKey(leaf, key)) != null) {
+            i = leaf.indexOf(key);
+        }
+        if (i < 0) return 0;
+        int visited = 0;
+        // The key itself and the next N pairs.
+        while (visited <= n) {
+            if (i == leaf.degree) {
+                leaf = leaf.right;
+                i = 0;
+                if (leaf == null) break;
+                continue;
+            }
+            visited++;
+            if (!visitor.visit(leaf.keys.get(i), leaf.values.get(i))) break;
+            i++;
+        }
+        return visited;
+    }
+
+    /**
+     * Visits the pairs inside [from, to) in key order, walking the leaf chain without allocating a Pair per result.
+     *
+     * @param from    lowest key to visit (inclusive), null for no lower bound.
+     * @param to      key to stop at (exclusive), null for no upper bound.
+     * @param visitor visitor called for every pair, returning false stops the scan
+     * @return number of pairs visited.
+     */
+    public int forEach(K from, K to, EntryVisitor<K, V> visitor) {
+        flushWriteBuffers();
+        LeafNode leaf = from == null ? this.leftLeafNode : findLowerBoundLeaf(from);
+        int visited = 0;
+        while (leaf != null) {
+            for (int i = 0; i < leaf.degree; i++) {
+                K key = leaf.keys.get(i);
+                if (from != null && key.compareTo(from) < 0) continue;
+                if (to != null && key.compareTo(to) >= 0) return visited;
+                visited++;
+                if (!visitor.visit(key, leaf.values.get(i))) return visited;
+            }
+            leaf = leaf.right;
+        }
+        return visited;
+    }
+
     /**
      * Return list of N values from key (inclusive).
      * @param key key to search from.
@@ -133,7 +347,135 @@ public class BPlusTree<K extends Comparable<K>, V> {
      * @return list of values to return.
      */
     public List<Pair<K, V>> getNKeyValPair(K key, int n){
-        return this.root.getNKeyValPair(key, n);
+        List<Pair<K, V>> values = new ArrayList<>();
+        getNKeyValPair(key, n, (k, v) -> values.add(new Pair<>(k, v)));
+        return values;
+    }
+
+    /**
+     * @return number of pairs inside the tree.
+     */
+    public int size() {
+        flushWriteBuffers();
+        return countOf(this.root);
+    }
+
+    /**
+     * Returns number of keys smaller than key.
+     *
+     * @param key key to rank
+     * @return number of keys inside the tree strictly smaller than key.
+     */
+    public int rank(K key) {
+        flushWriteBuffers();
+        int rank = 0;
+        Node node = this.root;
+        while (!node.isLeafNode()) {
+            InternalNode internalNode = (InternalNode) node;
+            // Left most child which may contain key, every child before it only contains smaller keys.
+            int i = 0;
+            while (i < internalNode.degree && internalNode.keys.get(i).compareTo(key) < 0) {
+                rank += countOf(internalNode.childs.get(i));
+                i++;
+            }
+            node = internalNode.childs.get(i);
+        }
+        int i = 0;
+        while (i < node.degree && node.keys.get(i).compareTo(key) < 0) {
+            i++;
+        }
+        return rank + i;
+    }
+
+    /**
+     * Returns the pair at position index in key order.
+     *
+     * @param index position of the pair, from 0 to size() - 1.
+     * @return pair at the position.
+     */
+    public Pair<K, V> select(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        Node node = this.root;
+        while (!node.isLeafNode()) {
+            InternalNode internalNode = (InternalNode) node;
+            int i = 0;
+            while (index >= countOf(internalNode.childs.get(i))) {
+                index -= countOf(internalNode.childs.get(i));
+                i++;
+            }
+            node = internalNode.childs.get(i);
+        }
+        LeafNode leaf = (LeafNode) node;
+        return new Pair<>(leaf.keys.get(index), leaf.values.get(index));
+    }
+
+    /**
+     * Returns number of keys inside [from, to).
+     *
+     * @param from lowest key to count (inclusive), null for no lower bound.
+     * @param to   key to stop at (exclusive), null for no upper bound.
+     * @return number of keys inside the range.
+     */
+    public int countRange(K from, K to) {
+        int lower = from == null ? 0 : rank(from);
+        int upper = to == null ? size() : rank(to);
+        return Math.max(0, upper - lower);
+    }
+
+    /**
+     * @param node root of a subtree.
+     * @return number of pairs inside the subtree.
+     */
+    private int countOf(Node node) {
+        if (node.isLeafNode()) {
+            return node.degree;
+        }
+        return ((InternalNode) node).count;
+    }
+
+    /**
+     * @return sequential stream of all the pairs inside the tree in key order.
+     */
+    public Stream<Pair<K, V>> entries() {
+        return entries(null, null);
+    }
+
+    /**
+     * Returns the pairs whose key is inside [from, to) in key order. Call parallel() on the stream to split the work
+     * at InternalNode boundaries. The tree must not be modified while the stream is consumed.
+     *
+     * @param from lowest key to return (inclusive), null for no lower bound.
+     * @param to   key to stop at (exclusive), null for no upper bound.
+     * @return stream of pairs inside the range.
+     */
+    public Stream<Pair<K, V>> entries(K from, K to) {
+        return StreamSupport.stream(spliterator(from, to), false);
+    }
+
+    /**
+     * Returns a Spliterator over the pairs whose key is inside [from, to).
+     *
+     * @param from lowest key to return (inclusive), null for no lower bound.
+     * @param to   key to stop at (exclusive), null for no upper bound.
+     * @return spliterator over the pairs inside the range.
+     */
+    public Spliterator<Pair<K, V>> spliterator(K from, K to) {
+        flushWriteBuffers();
+        ArrayDeque<Node> pending = new ArrayDeque<>();
+        pending.add(this.root);
+        return new RangeSpliterator(pending, from, to, countRange(from, to));
+    }
+
+    /**
+     * Returns a cursor positioned at the smallest key. The tree must not be modified while the cursor is used.
+     *
+     * @return cursor over the leaf chain.
+     */
+    public Cursor cursor() {
+        flushWriteBuffers();
+        return new Cursor();
     }
 
     /**
@@ -144,9 +486,21 @@ public class BPlusTree<K extends Comparable<K>, V> {
      */
     public void insert(K key, V value) {
         if (key == null) return;
-        Node newRoot = this.root.insert(key, value);
-        if (newRoot != null) this.root = newRoot;
-        this.leftLeafNode = this.root.refreshLeft();
+        if (this.lookupCache != null) this.lookupCache.invalidate(key);
+        if (this.writeBufferCapacity > 0 && !this.root.isLeafNode()) {
+            // Extractors run when the message reaches its leaf, fail now rather than inside a later flush.
+            checkSecondaryIndexes(value);
+            bufferMessage(new BufferedMessage(key, value, false));
+        } else {
+            applyInsert(key, value);
+        }
+        if (this.negativeLookupFilter != null) {
+            this.negativeLookupFilter.add(key);
+            if (this.negativeLookupFilter.isSaturated()) {
+                // Re-inserted keys count as insertions too, so size the new filter from the live keys.
+                rebuildNegativeLookupFilter();
+            }
+        }
     }
 
     /**
@@ -156,8 +510,19 @@ public class BPlusTree<K extends Comparable<K>, V> {
      * @return Value if key is found otherwise null
      */
     public boolean remove(K key) {
-        boolean success = this.root.remove(key);
-        if (!success) System.out.println("Removed failed.");
+        if (this.lookupCache != null) this.lookupCache.invalidate(key);
+        boolean success;
+        if (this.writeBufferCapacity > 0 && !this.root.isLeafNode()) {
+            // Result of remove needs a lookup, the removal itself is buffered.
+            success = findBuffered(key) != NOT_FOUND;
+            if (success) bufferMessage(new BufferedMessage(key, null, true));
+        } else {
+            success = removeKey(key);
+        }
+        if (!success) {
+            removeMisses++;
+            if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Remove failed: " + key);
+        }
         return success;
     }
 
@@ -168,6 +533,8 @@ public class BPlusTree<K extends Comparable<K>, V> {
      * @return True if modify was successful otherwise false.
      */
     public boolean modify(K key, V value){
+        // Fail before the old value is removed if an extractor rejects the new one.
+        checkSecondaryIndexes(value);
         if(!remove(key)){
             return false;
         } else {
@@ -177,546 +544,2051 @@ public class BPlusTree<K extends Comparable<K>, V> {
     }
 
     /**
-     * Increments height of the three.
+     * Adds a secondary index over an attribute of the values. The index is an auxiliary BPlusTree keyed by
+     * (attribute, key) and is kept consistent with every insert, modify and remove of this tree.
+     *
+     * @param extractor extracts the indexed attribute from a value. Values whose attribute is null are not indexed.
+     * @return new index, filled with the pairs already inside the tree.
      */
-    private void incrementHeight() {
-        this.height++;
+    public <S extends Comparable<S>> SecondaryIndex<K, V, S> addSecondaryIndex(Function<V, S> extractor) {
+        SecondaryIndex<K, V, S> index = new SecondaryIndex<>(this, extractor, new BPlusTree<>(
+                internalNodeMinDegree, internalNodeMaxDegree, minNumberOfValues, maxNumberOfValues));
+        flushWriteBuffers();
+        for (LeafNode leaf = this.leftLeafNode; leaf != null; leaf = leaf.right) {
+            for (int i = 0; i < leaf.degree; i++) {
+                index.add(leaf.keys.get(i), leaf.values.get(i));
+            }
+        }
+        this.secondaryIndexes.add(index);
+        return index;
     }
 
     /**
-     * Decrement height of the three.
+     * Stops maintaining a secondary index.
+     *
+     * @param index index to remove
+     * @return True if the index was registered otherwise false.
      */
-    private void decrementHeight() {
-        this.height--;
+    public boolean removeSecondaryIndex(SecondaryIndex<K, V, ?> index) {
+        return this.secondaryIndexes.remove(index);
     }
 
     /**
-     * Increments number of internal node fusions.
+     * Adds a pair to every secondary index. If an extractor throws, the indexes updated before are rolled back.
+     *
+     * @param key   key of the pair
+     * @param value value of the pair
      */
-    private void incrementInternalNodeFusions() {
-        internalNodeFusions++;
+    private void addToSecondaryIndexes(K key, V value) {
+        for (int i = 0; i < this.secondaryIndexes.size(); i++) {
+            try {
+                this.secondaryIndexes.get(i).add(key, value);
+            } catch (RuntimeException | Error e) {
+                for (int j = 0; j < i; j++) {
+                    this.secondaryIndexes.get(j).remove(key, value);
+                }
+                throw e;
+            }
+        }
     }
 
     /**
-     * Increments number of internal node splits.
+     * Removes a pair from every secondary index. If an extractor throws, the indexes updated before are rolled back.
+     *
+     * @param key   key of the pair
+     * @param value value of the pair
      */
-    private void incrementInternalNodeSplits() {
-        internalNodeSplits++;
+    private void removeFromSecondaryIndexes(K key, V value) {
+        for (int i = 0; i < this.secondaryIndexes.size(); i++) {
+            try {
+                this.secondaryIndexes.get(i).remove(key, value);
+            } catch (RuntimeException | Error e) {
+                for (int j = 0; j < i; j++) {
+                    this.secondaryIndexes.get(j).add(key, value);
+                }
+                throw e;
+            }
+        }
     }
 
     /**
-     * Increments number of leaf node fusions.
+     * Runs the extractor of every secondary index on value, so a throwing extractor fails before the tree changes.
+     *
+     * @param value value to check
      */
-    private void incrementLeafNodeFusions() {
-        leafNodeFusions++;
+    private void checkSecondaryIndexes(V value) {
+        for (SecondaryIndex<K, V, ?> index : this.secondaryIndexes) {
+            index.attribute(value);
+        }
     }
 
     /**
-     * Increments number of internal node splits.
+     * Enables write optimized mode. Inserts and removes are appended as messages to the buffer of the root
+     * InternalNode and flushed one level down in a batch whenever a buffer holds more than bufferCapacity messages,
+     * so consecutive writes share the work of reaching the leaf nodes. find consults the buffers on the way down.
+     * Range, order statistic and save operations flush all the buffers first. Keys are expected to be unique, a
+     * buffered remove always targets the copy of the key that find would return.
+     *
+     * @param bufferCapacity number of messages an InternalNode buffers before flushing. Minimum 1.
      */
-    private void incrementLeafNodeSplits() {
-        leafNodeSplits++;
+    public void enableWriteBuffering(int bufferCapacity) {
+        if (bufferCapacity < 1) {
+            throw new IllegalArgumentException("Buffer capacity must be at least 1: " + bufferCapacity);
+        }
+        this.writeBufferCapacity = bufferCapacity;
     }
 
     /**
-     * Prints all the values inside the Tree.
+     * Applies all the buffered messages and disables write optimized mode.
      */
-    public void PrintValues() {
-        System.out.println("Tree:");
-        this.root.Print();
+    public void disableWriteBuffering() {
+        flushWriteBuffers();
+        this.writeBufferCapacity = 0;
     }
 
     /**
-     * Merges rightNode into the leftNode.
-     *
-     * @param leftNode  Node to which merge the values
-     * @param rightNode Node whose values to merge.
+     * @return number of messages buffered inside InternalNodes and not yet applied to leaf nodes.
      */
-    private void mergeNode(Node leftNode, Node rightNode) {
-        leftNode.degree += rightNode.degree;
-        leftNode.keys.addAll(rightNode.keys);
-        if (leftNode.isLeafNode()) {
-            LeafNode leafLeftNode = (LeafNode) leftNode;
-            LeafNode leafRightNode = (LeafNode) rightNode;
-            leafLeftNode.values.addAll(leafRightNode.values);
-        } else {
-            InternalNode internalLeftNode = (InternalNode) leftNode;
-            InternalNode internalRightNode = (InternalNode) rightNode;
-            internalLeftNode.childs.addAll(internalRightNode.childs);
+    public int getBufferedMessages() {
+        return bufferedMessages;
+    }
+
+    /**
+     * Applies all the buffered messages to the leaf nodes.
+     */
+    public void flushWriteBuffers() {
+        while (this.bufferedMessages > 0) {
+            flushAll(this.root);
         }
     }
 
     /**
-     * Abstract Node class for both InternalNode and LeafNode.
+     * Flushes the buffer of node and then the buffers of all its descendants.
+     *
+     * @param node root of the subtree to flush.
      */
-    public abstract class Node {
-        //parent node
-        protected InternalNode parent;
+    private void flushAll(Node node) {
+        if (node.isLeafNode()) return;
+        InternalNode internalNode = (InternalNode) node;
+        flushBuffer(internalNode);
+        for (Node child : new ArrayList<>(internalNode.childs)) {
+            flushAll(child);
+        }
+    }
 
-        // number of keys (child nodes)
-        protected int degree;
+    /**
+     * Appends a message to the buffer of the root and flushes it if it is full.
+     *
+     * @param message message to buffer.
+     */
+    private void bufferMessage(BufferedMessage message) {
+        InternalNode rootNode = (InternalNode) this.root;
+        rootNode.buffer.add(message);
+        this.bufferedMessages++;
+        if (rootNode.buffer.size() > this.writeBufferCapacity) {
+            flushBuffer(rootNode);
+        }
+    }
 
-        // Node minDegree
-        protected int minDegree;
+    /**
+     * Moves the messages of node one level down. Messages are applied directly to the leaf nodes below node if the
+     * childs are leaf nodes, otherwise they are appended to the buffers of the childs and full child buffers are
+     * flushed in turn.
+     *
+     * @param node InternalNode whose buffer to flush.
+     */
+    private void flushBuffer(InternalNode node) {
+        if (node.buffer.isEmpty()) return;
+
+        if (node.childs.get(0).isLeafNode()) {
+            // No buffer between node and the leaf nodes, apply in arrival order without descending from the root.
+            // Messages are taken from the buffer one by one, so if node splits the remaining messages of its new
+            // right node move to the buffer of that node and stay buffered.
+            Path above = new Path();
+            pathTo(node, above);
+            InternalNode right = node.right;
+            Path path = this.path;
+            while (!node.buffer.isEmpty()) {
+                BufferedMessage message = node.buffer.remove(0);
+                this.bufferedMessages--;
+                path.copy(above);
+                int i = node.childIndex(message.key);
+                path.push(node, i);
+                LeafNode leaf = (LeafNode) node.childs.get(i);
+                if (message.delete) {
+                    removeFromLeaf(leaf, message.key, path);
+                } else {
+                    insertIntoLeaf(leaf, message.key, message.value, path);
+                }
+                if (node.right != right) {
+                    // Node split, its ancestors may have changed.
+                    pathTo(node, above);
+                    right = node.right;
+                }
+            }
+            return;
+        }
 
-        // Node maxDegree
-        protected int maxDegree;
+        ArrayList<BufferedMessage> messages = node.buffer;
+        node.buffer = new ArrayList<>();
+        for (BufferedMessage message : messages) {
+            InternalNode child = (InternalNode) node.childs.get(node.childIndex(message.key));
+            child.buffer.add(message);
+        }
+        for (Node child : new ArrayList<>(node.childs)) {
+            InternalNode internalChild = (InternalNode) child;
+            if (internalChild.buffer.size() > this.writeBufferCapacity) {
+                flushBuffer(internalChild);
+            }
+        }
+    }
 
-        //key
-        protected ArrayList<K> keys;
+    /**
+     * Inserts the key and value directly into its leaf node, ignoring write buffers.
+     *
+     * @param key   key for the value
+     * @param value value to insert
+     */
+    private void applyInsert(K key, V value) {
+        insertIntoLeaf(descend(key, this.path), key, value, this.path);
+    }
 
-        /**
-         * Create a new Node.
-         *
-         * @param minDegree minimum number for keys (childs)
-         * @param maxDegree maximum number of keys(childs)
-         */
-        public Node(int minDegree, int maxDegree) {
-            this.degree = 0;
-            this.minDegree = minDegree;
-            this.maxDegree = maxDegree;
-            this.parent = null;
-            this.keys = new ArrayList<>(this.maxDegree);
+    /**
+     * Inserts the key and value into the leaf node at the end of path, updating the counts along the path and
+     * splitting upwards as long as a node overflows.
+     *
+     * @param leaf  leaf node the key routes to
+     * @param key   key for the value
+     * @param value value to insert
+     * @param path  path from the root to the leaf node
+     */
+    private void insertIntoLeaf(LeafNode leaf, K key, V value, Path path) {
+        leaf.insert(key, value);
+        for (int level = 0; level < path.size; level++) {
+            path.nodes.get(level).count++;
+        }
+        if (leaf.degree <= leaf.maxDegree) {
+            // No need to split.
+            return;
         }
 
-        /**
-         * Finds the key.
-         *
-         * @param key key to look for
-         * @return Value if key is found otherwise null
-         */
-        protected abstract V find(K key);
+        // Split the leaf node, then walk the path upwards as long as the parent overflows in turn.
+        Node left = leaf;
+        Node right = leaf.split();
+        K separator = right.keys.get(0);
+        for (int level = path.size - 1; ; level--) {
+            InternalNode parent = level >= 0 ? path.nodes.get(level) : newRoot(left, right);
+            parent.insertChild(level >= 0 ? path.indexes[level] : 0, separator, right);
+            if (parent.degree <= parent.maxDegree) {
+                return;
+            }
+            separator = parent.keys.get(parent.degree / 2);
+            left = parent;
+            right = parent.split();
+        }
+    }
 
-        /**
-         * Inserts the key and value inside the Node.
-         *
-         * @param key   key for the value
-         * @param value value to insert
-         * @return void
-         */
-        protected abstract Node insert(K key, V value);
+    /**
+     * Removes the first pair with the key directly from its leaf node, ignoring write buffers.
+     *
+     * @param key key to remove
+     * @return true if successful otherwise false.
+     */
+    private boolean removeKey(K key) {
+        return removeFromLeaf(descend(key, this.path), key, this.path);
+    }
 
-        /**
-         * Removed key from the tree.
-         * @param key key to remove.
-         * @return true if successful otherwise false.
-         */
-        protected abstract boolean remove(K key);
+    /**
+     * Removes the first pair with the key, looking from the leaf node at the end of path.
+     *
+     * @param leaf leaf node the key routes to
+     * @param key  key to remove
+     * @param path path from the root to the leaf node
+     * @return true if successful otherwise false.
+     */
+    private boolean removeFromLeaf(LeafNode leaf, K key, Path path) {
+        leaf = leafWithKey(leaf, key, path);
+        if (leaf == null) {
+            return false;
+        }
+        removeAt(leaf, leaf.indexOf(key), path);
+        return true;
+    }
+
+    /**
+     * Removes the pair at index from the leaf node at the end of path and updates the counts along the path. A
+     * separator can only hold the removed key if it was the min key of the leaf node, so only then the separator on
+     * the path is fixed, and never to a null key. A separator left behind by an emptied leaf node still routes
+     * unique keys correctly, but copies of a duplicated key equal to it may remain in the leaf nodes to the left, so
+     * lookups fall back to them through leafWithKey and leftLeafWithKey. In write optimized mode separators are
+     * never fixed, so messages buffered inside an InternalNode stay inside the key range of its subtree.
+     *
+     * @param leaf  leaf node to remove from
+     * @param index index of the pair to remove
+     * @param path  path from the root to the leaf node
+     */
+    private void removeAt(LeafNode leaf, int index, Path path) {
+        K key = leaf.keys.get(index);
+        leaf.removeAt(index);
+        for (int level = 0; level < path.size; level++) {
+            path.nodes.get(level).count--;
+        }
+        if (index > 0 || leaf.degree == 0 || this.writeBufferCapacity > 0) {
+            return;
+        }
+        // Leaf node is the left most leaf node of the child taken at every level below the first one that is not
+        // the left most child, so the separator in front of that child is the only one bounding the leaf node.
+        for (int level = path.size - 1; level >= 0; level--) {
+            int i = path.indexes[level];
+            if (i > 0) {
+                InternalNode node = path.nodes.get(level);
+                if (node.keys.get(i - 1).compareTo(key) == 0) {
+                    node.keys.set(i - 1, leaf.keys.get(0));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Creates a new root above the old root which has just been split.
+     *
+     * @param left  old root, left node of the split
+     * @param right right node of the split
+     * @return the new root holding only left.
+     */
+    private InternalNode newRoot(Node left, Node right) {
+        InternalNode newParent = new InternalNode();
+        newParent.childs.add(left);
+        newParent.count = countOf(left) + countOf(right);
+        left.parent = newParent;
+        this.root = newParent;
+        incrementHeight();
+        return newParent;
+    }
+
+    /**
+     * Descends from the root to the leaf node which may contain the key, recording the InternalNodes on the way.
+     *
+     * @param key  key to look for
+     * @param path path to fill, cleared first
+     * @return leaf node for the key.
+     */
+    private LeafNode descend(K key, Path path) {
+        path.clear();
+        Node node = this.root;
+        while (!node.isLeafNode()) {
+            InternalNode internalNode = (InternalNode) node;
+            int i = internalNode.childIndex(key);
+            path.push(internalNode, i);
+            node = internalNode.childs.get(i);
+        }
+        return (LeafNode) node;
+    }
+
+    /**
+     * Fills path with the InternalNodes from the root down to the parent of node, together with the index of the
+     * child taken at each of them.
+     *
+     * @param node node to reach
+     * @param path path to fill, cleared first
+     */
+    private void pathTo(Node node, Path path) {
+        path.clear();
+        for (Node child = node; child.parent != null; child = child.parent) {
+            path.push(child.parent, child.parent.childs.indexOf(child));
+        }
+        path.reverse();
+    }
+
+    /**
+     * Finds the leaf node holding the pair with the key that find returns, starting from the leaf node at the end of
+     * path. Falls back to the leaf nodes on the left when that leaf node has no pair with the key, moving path along.
+     *
+     * @param leaf leaf node the key routes to
+     * @param key  key to look for
+     * @param path path from the root to the leaf node
+     * @return leaf node holding the key, null if the key is not inside the tree.
+     */
+    private LeafNode leafWithKey(LeafNode leaf, K key, Path path) {
+        if (leaf.indexOf(key) >= 0) {
+            return leaf;
+        }
+        for (leaf = stepLeft(path); leaf != null; leaf = stepLeft(path)) {
+            if (leaf.degree > 0) {
+                return leaf.keys.get(leaf.degree - 1).compareTo(key) == 0 ? leaf : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves path to the leaf node on the left of the one it ends at.
+     *
+     * @param path path from the root to a leaf node
+     * @return the leaf node on the left, null if path ends at the left most leaf node.
+     */
+    private LeafNode stepLeft(Path path) {
+        int level = path.size - 1;
+        while (level >= 0 && path.indexes[level] == 0) {
+            level--;
+        }
+        if (level < 0) {
+            return null;
+        }
+        InternalNode parent = path.nodes.get(level);
+        int i = path.indexes[level] - 1;
+        path.truncate(level);
+        path.push(parent, i);
+        Node node = parent.childs.get(i);
+        while (!node.isLeafNode()) {
+            InternalNode internalNode = (InternalNode) node;
+            path.push(internalNode, internalNode.childs.size() - 1);
+            node = internalNode.childs.get(internalNode.childs.size() - 1);
+        }
+        return (LeafNode) node;
+    }
+
+    /**
+     * Looks for copies of the key on the left of a leaf node which holds none. Removing the min key of a leaf node
+     * can leave its separator equal to copies of the key inside the leaf nodes on the left.
+     *
+     * @param leaf leaf node the key routes to, or the last one returned for it
+     * @param key  key to look for
+     * @return the closest non-empty leaf node on the left if its max key is the key, otherwise null.
+     */
+    private LeafNode leftLeafWithKey(LeafNode leaf, K key) {
+        for (LeafNode left = leaf.left; left != null; left = left.left) {
+            if (left.degree > 0) {
+                return left.keys.get(left.degree - 1).compareTo(key) == 0 ? left : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the left most leaf node of the tree.
+     */
+    private LeafNode leftmostLeaf() {
+        Node node = this.root;
+        while (!node.isLeafNode()) {
+            node = ((InternalNode) node).childs.get(0);
+        }
+        return (LeafNode) node;
+    }
+
+    /**
+     * Finds the key consulting the write buffers on the way down. Newer messages are closer to the root and at the
+     * end of a buffer. Every buffered remove hides the next older copy of the key.
+     *
+     * @param key key to look for
+     * @return Value if key is found otherwise NOT_FOUND.
+     */
+    private Object findBuffered(K key) {
+        int hidden = 0;
+        Node node = this.root;
+        while (!node.isLeafNode()) {
+            InternalNode internalNode = (InternalNode) node;
+            for (int i = internalNode.buffer.size() - 1; i >= 0; i--) {
+                BufferedMessage message = internalNode.buffer.get(i);
+                if (message.key.compareTo(key) != 0) continue;
+                if (message.delete) {
+                    hidden++;
+                } else if (hidden == 0) {
+                    return message.value;
+                } else {
+                    hidden--;
+                }
+            }
+            node = internalNode.childs.get(internalNode.childIndex(key));
+        }
+        // Removes take the copies of the leaf node the key routes to first, then the ones on its left.
+        for (LeafNode leaf = (LeafNode) node; leaf != null; leaf = leftLeafWithKey(leaf, key)) {
+            for (int i = leaf.lowerBound(key); i < leaf.degree && leaf.keys.get(i).compareTo(key) == 0; i++) {
+                if (hidden-- == 0) {
+                    return leaf.values.get(i);
+                }
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @param value value returned by findBuffered
+     * @return value as V.
+     */
+    @SuppressWarnings("unchecked")
+    private V castValue(Object value) {
+        return (V) value;
+    }
+
+    /**
+     * Replaces every value in place with the result of function, without restructuring the tree.
+     *
+     * @param function computes the new value from key and old value
+     */
+    public void replaceAll(BiFunction<K, V, V> function) {
+        flushWriteBuffers();
+        if (this.lookupCache != null) this.lookupCache.clear();
+        for (LeafNode leaf = this.leftLeafNode; leaf != null; leaf = leaf.right) {
+            for (int i = 0; i < leaf.degree; i++) {
+                K key = leaf.keys.get(i);
+                V oldValue = leaf.values.get(i);
+                V newValue = function.apply(key, oldValue);
+                removeFromSecondaryIndexes(key, oldValue);
+                try {
+                    addToSecondaryIndexes(key, newValue);
+                } catch (RuntimeException | Error e) {
+                    addToSecondaryIndexes(key, oldValue);
+                    throw e;
+                }
+                leaf.values.set(i, newValue);
+            }
+        }
+    }
+
+    /**
+     * Enables a bounded cache of recently found keys in front of find.
+     * Cache is kept coherent by invalidating the key on insert, modify and remove.
+     *
+     * @param capacity maximum number of keys to cache.
+     */
+    public void enableLookupCache(int capacity) {
+        this.lookupCache = new LookupCache<>(capacity);
+    }
+
+    /**
+     * Disables the lookup cache.
+     */
+    public void disableLookupCache() {
+        this.lookupCache = null;
+    }
+
+    /**
+     * @return lookup cache with its hit and miss counters, null if the cache is disabled.
+     */
+    public LookupCache<K, V> getLookupCache() {
+        return lookupCache;
+    }
+
+    /**
+     * Enables one byte hash fingerprint per key inside every leaf node. Point lookups then compare the search key
+     * only against the slots with a matching fingerprint instead of every key of the leaf.
+     * Keys must have a hashCode consistent with compareTo, as String does.
+     */
+    public void enableLeafFingerprints() {
+        this.leafFingerprints = true;
+        for (LeafNode leaf = this.leftLeafNode; leaf != null; leaf = leaf.right) {
+            leaf.buildFingerprints();
+        }
+    }
+
+    /**
+     * Disables leaf fingerprints and releases their memory.
+     */
+    public void disableLeafFingerprints() {
+        this.leafFingerprints = false;
+        for (LeafNode leaf = this.leftLeafNode; leaf != null; leaf = leaf.right) {
+            leaf.fingerprints = null;
+        }
+    }
+
+    /**
+     * Packs the values of every leaf node into a single array encoded by codec, instead of one object per value.
+     * Values are decoded only when a lookup, scan or cursor returns them, so values which encode to a few bytes take
+     * a few bytes plus one end offset each. Every read decodes a new value object.
+     *
+     * @param codec codec encoding the values
+     */
+    public void enableValueBlocks(ValueCodec<V> codec) {
+        this.valueCodec = codec;
+        for (LeafNode leaf = this.leftLeafNode; leaf != null; leaf = leaf.right) {
+            ValueBlock block = new ValueBlock(leaf.maxDegree + 1);
+            block.addAll(leaf.values);
+            leaf.values = block;
+        }
+    }
+
+    /**
+     * @return estimated number of bytes of the value blocks of all the leaf nodes, 0 if value blocks are disabled.
+     */
+    public long getValueBlockBytes() {
+        if (this.valueCodec == null) return 0;
+        long bytes = 0;
+        for (LeafNode leaf = this.leftLeafNode; leaf != null; leaf = leaf.right) {
+            bytes += leaf.valueBlock().bytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Computes the one byte fingerprint of a key.
+     *
+     * @param key key to fingerprint
+     * @return fingerprint of the key.
+     */
+    private static byte fingerprint(Object key) {
+        return (byte) ((key.hashCode() * 0x9E3779B9) >>> 24);
+    }
+
+    /**
+     * Enables a Bloom filter in front of find so that most lookups of absent keys do not descend the tree.
+     * Removed keys are not cleared from the filter, call rebuildNegativeLookupFilter after large deletes.
+     *
+     * @param falsePositiveRate wanted false positive rate, between 0 and 1 (exclusive).
+     */
+    public void enableNegativeLookupFilter(double falsePositiveRate) {
+        buildNegativeLookupFilter(falsePositiveRate);
+    }
+
+    /**
+     * Disables the negative lookup filter.
+     */
+    public void disableNegativeLookupFilter() {
+        this.negativeLookupFilter = null;
+    }
+
+    /**
+     * @return True if the negative lookup filter is enabled otherwise false.
+     */
+    public boolean isNegativeLookupFilterEnabled() {
+        return this.negativeLookupFilter != null;
+    }
+
+    /**
+     * Rebuilds the negative lookup filter from the keys currently inside the tree.
+     * Should be called after bulk loads and large deletes. Does nothing if the filter is disabled.
+     */
+    public void rebuildNegativeLookupFilter() {
+        if (this.negativeLookupFilter != null) {
+            buildNegativeLookupFilter(this.negativeLookupFalsePositiveRate);
+        }
+    }
+
+    /**
+     * Builds the negative lookup filter sized for twice the current number of keys, so the filter saturates again
+     * only after as many insertions as there are keys and its memory follows the size of the tree. The fields are
+     * only assigned once the filter is built, so a rejected rate leaves the current filter and its rate untouched.
+     *
+     * @param falsePositiveRate wanted false positive rate, between 0 and 1 (exclusive).
+     */
+    private void buildNegativeLookupFilter(double falsePositiveRate) {
+        flushWriteBuffers();
+        BloomFilter<K> filter = new BloomFilter<>(
+                Math.max(2 * countOf(this.root), MIN_FILTER_CAPACITY), falsePositiveRate);
+        for (LeafNode leaf = this.leftLeafNode; leaf != null; leaf = leaf.right) {
+            leaf.keys.forEach(filter::add);
+        }
+        this.negativeLookupFilter = filter;
+        this.negativeLookupFalsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Removes all the keys inside [from, to). Subtrees lying fully inside the range are detached as a whole, so only
+     * the two boundary paths are visited.
+     *
+     * @param from lowest key to remove (inclusive), null for no lower bound.
+     * @param to   key to stop at (exclusive), null for no upper bound.
+     * @return number of removed pairs.
+     */
+    public int removeRange(K from, K to) {
+        if (from != null && to != null && from.compareTo(to) >= 0) {
+            return 0;
+        }
+        if (this.lookupCache != null) this.lookupCache.clear();
+        flushWriteBuffers();
+        if (!this.secondaryIndexes.isEmpty()) {
+            // Several leaf nodes change, so run the extractors before any of them does.
+            forEach(from, to, (key, value) -> {
+                checkSecondaryIndexes(value);
+                return true;
+            });
+        }
+        int removed = this.root.removeRange(from, to);
+
+        // Shrink the tree if the root lost its childs.
+        if (!this.root.isLeafNode() && ((InternalNode) this.root).childs.isEmpty()) {
+            this.root = new LeafNode();
+            this.height = 0;
+        }
+        while (!this.root.isLeafNode() && ((InternalNode) this.root).childs.size() == 1) {
+            this.root = ((InternalNode) this.root).childs.get(0);
+            this.root.parent = null;
+            decrementHeight();
+        }
+        this.leftLeafNode = leftmostLeaf();
+        return removed;
+    }
+
+    /**
+     * Removes the keys in a batch. Consecutive keys that fall into the same leaf node share a single descent, so keys
+     * should be sorted in ascending order.
+     *
+     * @param keys keys to remove, sorted in ascending order.
+     * @return number of removed pairs.
+     */
+    public int removeAll(Iterable<? extends K> keys) {
+        flushWriteBuffers();
+        int removed = 0;
+        LeafNode leaf = null;
+        for (K key : keys) {
+            if (this.lookupCache != null) this.lookupCache.invalidate(key);
+            if (leaf == null || leaf.degree == 0
+                    || key.compareTo(leaf.keys.get(0)) < 0
+                    || key.compareTo(leaf.keys.get(leaf.degree - 1)) > 0) {
+                leaf = descend(key, this.path);
+            }
+            int index = leaf.indexOf(key);
+            if (index < 0) {
+                leaf = leafWithKey(leaf, key, this.path);
+                index = leaf == null ? -1 : leaf.indexOf(key);
+            }
+            if (index < 0) {
+                removeMisses++;
+            } else {
+                removeAt(leaf, index, this.path);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Rewrites the leaf chain densely and rebuilds the InternalNode levels bottom-up. Leaf nodes split at half full
+     * and are never merged on remove, so long running trees collect sparse leaf nodes and extra height. Pairs, their
+     * order and the secondary indexes are unchanged, cursors and spliterators opened before are invalidated.
+     *
+     * @param targetFill fraction of the maximum degree every rebuilt node is filled to, inside (0, 1]
+     * @return node counts, height change and estimated bytes reclaimed.
+     */
+    public CompactionResult compact(double targetFill) {
+        if (!(targetFill > 0 && targetFill <= 1)) {
+            throw new IllegalArgumentException("Target fill must be inside (0, 1]: " + targetFill);
+        }
+        flushWriteBuffers();
+        int heightBefore = this.height;
+        int leafNodesBefore = 0;
+        for (LeafNode leaf = this.leftLeafNode; leaf != null; leaf = leaf.right) {
+            leafNodesBefore++;
+        }
+        long bytesBefore = estimateBytes();
+
+        // Spread the pairs evenly over as few leaf nodes as the target fill allows.
+        int total = countOf(this.root);
+        int perLeaf = Math.max(1, Math.min(this.maxNumberOfValues, (int) Math.ceil(targetFill * this.maxNumberOfValues)));
+        int leafCount = Math.max(1, (total + perLeaf - 1) / perLeaf);
+        List<Node> level = new ArrayList<>(leafCount);
+        LeafNode source = this.leftLeafNode;
+        int sourceIndex = 0;
+        LeafNode previous = null;
+        for (int i = 0; i < leafCount; i++) {
+            int size = total / leafCount + (i < total % leafCount ? 1 : 0);
+            LeafNode leaf = new LeafNode();
+            while (leaf.degree < size) {
+                while (sourceIndex == source.degree) {
+                    source = source.right;
+                    sourceIndex = 0;
+                }
+                leaf.keys.add(source.keys.get(sourceIndex));
+                leaf.values.add(source.values.get(sourceIndex));
+                leaf.degree++;
+                sourceIndex++;
+            }
+            if (leaf.fingerprints != null) leaf.buildFingerprints();
+            leaf.left = previous;
+            if (previous != null) previous.right = leaf;
+            previous = leaf;
+            level.add(leaf);
+        }
+        this.leftLeafNode = (LeafNode) level.get(0);
+
+        // Build the InternalNode levels bottom-up until a single root is left.
+        int maxChilds = this.internalNodeMaxDegree + 1;
+        int perNode = Math.max(2, Math.min(maxChilds, (int) Math.ceil(targetFill * maxChilds)));
+        int height = 0;
+        while (level.size() > 1) {
+            int n = level.size();
+            // Single child nodes only when the maximum degree leaves no other choice.
+            int nodeCount = Math.max((n + maxChilds - 1) / maxChilds, Math.min((n + perNode - 1) / perNode, n / 2));
+            List<Node> parents = new ArrayList<>(nodeCount);
+            InternalNode previousParent = null;
+            int child = 0;
+            for (int i = 0; i < nodeCount; i++) {
+                int size = n / nodeCount + (i < n % nodeCount ? 1 : 0);
+                InternalNode parent = new InternalNode();
+                for (int j = 0; j < size; j++) {
+                    Node node = level.get(child++);
+                    if (j > 0) parent.keys.add(firstKey(node));
+                    parent.childs.add(node);
+                    parent.count += countOf(node);
+                    node.parent = parent;
+                }
+                parent.degree = size - 1;
+                parent.left = previousParent;
+                if (previousParent != null) previousParent.right = parent;
+                previousParent = parent;
+                parents.add(parent);
+            }
+            level = parents;
+            height++;
+        }
+        this.root = level.get(0);
+        this.root.parent = null;
+        this.height = height;
+
+        CompactionResult result = new CompactionResult(leafNodesBefore, leafCount, heightBefore, height,
+                bytesBefore - estimateBytes());
+        this.compactions++;
+        this.reclaimedBytes += result.getBytesReclaimed();
+        return result;
+    }
+
+    /**
+     * @param node root of a non empty subtree
+     * @return the first key of the subtree.
+     */
+    private K firstKey(Node node) {
+        while (!node.isLeafNode()) {
+            node = ((InternalNode) node).childs.get(0);
+        }
+        return node.keys.get(0);
+    }
+
+    /**
+     * Estimates the memory taken by the nodes of the tree, counting full element arrays for every node.
+     *
+     * @return estimated number of bytes.
+     */
+    private long estimateBytes() {
+        long bytes = 0;
+        ArrayDeque<Node> pending = new ArrayDeque<>();
+        pending.push(this.root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            if (node.isLeafNode()) {
+                LeafNode leaf = (LeafNode) node;
+                bytes += NODE_BYTES + REFERENCE_BYTES * (long) leaf.maxDegree;
+                bytes += this.valueCodec != null ? leaf.valueBlock().bytes()
+                        : REFERENCE_BYTES * (long) leaf.maxDegree;
+                if (leaf.fingerprints != null) bytes += leaf.fingerprints.length;
+            } else {
+                InternalNode internalNode = (InternalNode) node;
+                bytes += NODE_BYTES + REFERENCE_BYTES * (2L * internalNode.maxDegree + 1);
+                for (Node child : internalNode.childs) {
+                    pending.push(child);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Descends from the root to the leaf node which may contain the key.
+     *
+     * @param key key to look for
+     * @return leaf node for the key.
+     */
+    private LeafNode findLeaf(K key) {
+        Node node = this.root;
+        while (!node.isLeafNode()) {
+            InternalNode internalNode = (InternalNode) node;
+            int i = 0;
+            while (i < internalNode.degree) {
+                if (internalNode.keys.get(i).compareTo(key) > 0) {
+                    break;
+                }
+                i++;
+            }
+            node = internalNode.childs.get(i);
+        }
+        return (LeafNode) node;
+    }
+
+    /**
+     * Increments height of the three.
+     */
+    private void incrementHeight() {
+        this.height++;
+    }
+
+    /**
+     * Decrement height of the three.
+     */
+    private void decrementHeight() {
+        this.height--;
+    }
+
+    /**
+     * Increments number of internal node fusions.
+     */
+    private void incrementInternalNodeFusions() {
+        internalNodeFusions++;
+    }
+
+    /**
+     * Increments number of internal node splits.
+     */
+    private void incrementInternalNodeSplits() {
+        internalNodeSplits++;
+    }
+
+    /**
+     * Increments number of leaf node fusions.
+     */
+    private void incrementLeafNodeFusions() {
+        leafNodeFusions++;
+    }
+
+    /**
+     * Increments number of internal node splits.
+     */
+    private void incrementLeafNodeSplits() {
+        leafNodeSplits++;
+    }
+
+    /**
+     * Checks the structural invariants of the tree and throws at the first one that does not hold. Visits every node,
+     * so it is meant for tests and stress runs rather than production paths. Nodes are never merged on remove, so only
+     * the maximum degrees are checked and empty leaf nodes are allowed.
+     *
+     * @throws IllegalStateException describing the first violated invariant.
+     */
+    public void verify() {
+        if (this.root.parent != null) {
+            throw new IllegalStateException("Root has a parent");
+        }
+        List<List<Node>> levels = new ArrayList<>();
+        verifyNode(this.root, null, null, 0, levels);
+        if (levels.size() != this.height + 1) {
+            throw new IllegalStateException("Height is " + this.height + " but the tree has " + levels.size()
+                    + " levels");
+        }
+
+        int messages = 0;
+        for (int depth = 0; depth < levels.size(); depth++) {
+            List<Node> level = levels.get(depth);
+            for (int i = 0; i < level.size(); i++) {
+                Node node = level.get(i);
+                Node expectedLeft = i > 0 ? level.get(i - 1) : null;
+                Node expectedRight = i + 1 < level.size() ? level.get(i + 1) : null;
+                Node left;
+                Node right;
+                if (node.isLeafNode()) {
+                    left = ((LeafNode) node).left;
+                    right = ((LeafNode) node).right;
+                } else {
+                    left = ((InternalNode) node).left;
+                    right = ((InternalNode) node).right;
+                    messages += ((InternalNode) node).buffer.size();
+                }
+                if (left != expectedLeft || right != expectedRight) {
+                    throw new IllegalStateException("Broken sibling links at depth " + depth + " index " + i
+                            + ": " + node.keys);
+                }
+            }
+        }
+        if (this.leftLeafNode != levels.get(this.height).get(0)) {
+            throw new IllegalStateException("leftLeafNode is not the leftmost leaf node");
+        }
+        if (messages != this.bufferedMessages) {
+            throw new IllegalStateException(messages + " buffered messages but bufferedMessages is "
+                    + this.bufferedMessages);
+        }
+
+        // Keys must also be in order across the leaf nodes.
+        K previous = null;
+        for (LeafNode leaf = this.leftLeafNode; leaf != null; leaf = leaf.right) {
+            for (int i = 0; i < leaf.degree; i++) {
+                K key = leaf.keys.get(i);
+                if (previous != null && previous.compareTo(key) > 0) {
+                    throw new IllegalStateException("Leaf chain out of order: " + previous + " before " + key);
+                }
+                if (this.negativeLookupFilter != null && !this.negativeLookupFilter.mightContain(key)) {
+                    throw new IllegalStateException("Negative lookup filter misses key " + key);
+                }
+                previous = key;
+            }
+        }
+        for (SecondaryIndex<K, V, ?> index : this.secondaryIndexes) {
+            index.verify();
+        }
+    }
+
+    /**
+     * Checks the invariants local to a subtree and records its nodes by depth.
+     *
+     * @param node   root of the subtree
+     * @param lower  lowest key the subtree may contain (inclusive), null for no lower bound
+     * @param upper  highest key the subtree may contain (inclusive), null for no upper bound
+     * @param depth  depth of node, 0 for the root
+     * @param levels nodes of every depth in key order, appended to
+     * @return number of pairs inside the subtree.
+     */
+    private int verifyNode(Node node, K lower, K upper, int depth, List<List<Node>> levels) {
+        if (levels.size() == depth) levels.add(new ArrayList<>());
+        levels.get(depth).add(node);
+        if (node.degree < 0 || node.degree > node.maxDegree || node.keys.size() != node.degree) {
+            throw new IllegalStateException("Invalid degree " + node.degree + " at depth " + depth + ": " + node.keys);
+        }
+        for (int i = 0; i < node.degree; i++) {
+            K key = node.keys.get(i);
+            if ((lower != null && key.compareTo(lower) < 0) || (upper != null && key.compareTo(upper) > 0)
+                    || (i > 0 && node.keys.get(i - 1).compareTo(key) > 0)) {
+                throw new IllegalStateException("Key " + key + " out of order or outside [" + lower + ", " + upper
+                        + "] at depth " + depth + ": " + node.keys);
+            }
+        }
+
+        if (node.isLeafNode()) {
+            LeafNode leaf = (LeafNode) node;
+            if (depth != this.height) {
+                throw new IllegalStateException("Leaf node at depth " + depth + " but height is " + this.height);
+            }
+            if (leaf.maxDegree != this.maxNumberOfValues || leaf.values.size() != leaf.degree) {
+                throw new IllegalStateException("Invalid leaf node values: " + leaf.keys);
+            }
+            if (this.leafFingerprints != (leaf.fingerprints != null)) {
+                throw new IllegalStateException("Leaf fingerprints are " + (this.leafFingerprints ? "missing" : "stale")
+                        + ": " + leaf.keys);
+            }
+            if (leaf.fingerprints != null) {
+                if (leaf.fingerprints.length <= leaf.degree) {
+                    throw new IllegalStateException("Leaf fingerprints too short: " + leaf.keys);
+                }
+                for (int i = 0; i < leaf.degree; i++) {
+                    if (leaf.fingerprints[i] != fingerprint(leaf.keys.get(i))) {
+                        throw new IllegalStateException("Wrong fingerprint of " + leaf.keys.get(i));
+                    }
+                }
+            }
+            return leaf.degree;
+        }
+
+        InternalNode internalNode = (InternalNode) node;
+        if (internalNode.maxDegree != this.internalNodeMaxDegree
+                || internalNode.childs.size() != internalNode.degree + 1) {
+            throw new IllegalStateException("InternalNode with " + internalNode.childs.size() + " childs and degree "
+                    + internalNode.degree + ": " + internalNode.keys);
+        }
+        int count = 0;
+        for (int i = 0; i < internalNode.childs.size(); i++) {
+            Node child = internalNode.childs.get(i);
+            if (child.parent != internalNode) {
+                throw new IllegalStateException("Wrong parent of child " + i + " at depth " + (depth + 1) + ": "
+                        + child.keys);
+            }
+            K childLower = i > 0 ? internalNode.keys.get(i - 1) : lower;
+            K childUpper = i < internalNode.degree ? internalNode.keys.get(i) : upper;
+            count += verifyNode(child, childLower, childUpper, depth + 1, levels);
+        }
+        if (internalNode.count != count) {
+            throw new IllegalStateException("InternalNode count is " + internalNode.count + " but its subtree holds "
+                    + count + " pairs: " + internalNode.keys);
+        }
+        return count;
+    }
+
+    /**
+     * Prints all the values inside the Tree.
+     */
+    public void PrintValues() {
+        System.out.println("Tree:");
+        this.root.Print();
+    }
+
+    /**
+     * Merges rightNode into the leftNode.
+     *
+     * @param leftNode  Node to which merge the values
+     * @param rightNode Node whose values to merge.
+     */
+    private void mergeNode(Node leftNode, Node rightNode) {
+        leftNode.degree += rightNode.degree;
+        leftNode.keys.addAll(rightNode.keys);
+        if (leftNode.isLeafNode()) {
+            LeafNode leafLeftNode = (LeafNode) leftNode;
+            LeafNode leafRightNode = (LeafNode) rightNode;
+            leafLeftNode.values.addAll(leafRightNode.values);
+        } else {
+            InternalNode internalLeftNode = (InternalNode) leftNode;
+            InternalNode internalRightNode = (InternalNode) rightNode;
+            internalLeftNode.childs.addAll(internalRightNode.childs);
+        }
+    }
+
+    /**
+     * Abstract Node class for both InternalNode and LeafNode.
+     */
+    public abstract class Node {
+        //parent node
+        protected InternalNode parent;
+
+        // number of keys (child nodes)
+        protected int degree;
+
+        // Node minDegree
+        protected int minDegree;
+
+        // Node maxDegree
+        protected int maxDegree;
+
+        //key
+        protected ArrayList<K> keys;
+
+        /**
+         * Create a new Node.
+         *
+         * @param minDegree minimum number for keys (childs)
+         * @param maxDegree maximum number of keys(childs)
+         */
+        public Node(int minDegree, int maxDegree) {
+            this.degree = 0;
+            this.minDegree = minDegree;
+            this.maxDegree = maxDegree;
+            this.parent = null;
+            this.keys = new ArrayList<>(this.maxDegree);
+        }
+
+        /**
+         * Removes all the keys inside [from, to) from the subtree.
+         * @param from lowest key to remove (inclusive), null for no lower bound.
+         * @param to key to stop at (exclusive), null for no upper bound.
+         * @return number of removed pairs.
+         */
+        protected abstract int removeRange(K from, K to);
+
+        /**
+         * Prints the tree.
+         */
+        public abstract void Print();
+
+        /**
+         * Determines if the Node is deficient or not.
+         *
+         * @return a boolean indicating whether the Node is deficient or not
+         */
+        public boolean isDeficient() {
+            return this.degree < this.minDegree;
+        }
+
+        /**
+         * Determines if the Node is capable of lending one of its degree to a deficient node.
+         *
+         * @return a boolean indicating whether or not the Node has enough degree degree in order to give one away.
+         */
+        public boolean isLendable() {
+            return this.degree > this.minDegree;
+        }
+
+        /**
+         * Determines if the Node is capable of being merged with.
+         *
+         * @return a boolean indicating whether or not the Node can be merged with.
+         */
+        public boolean isMergeable() {
+            return this.degree == this.minDegree;
+        }
+
+        /**
+         * Convenient method to determine if the current node is a LeafNode or not.
+         *
+         * @return True if Node is a LeafNode else returns False.
+         */
+        public boolean isLeafNode() {
+            return false;
+        }
+    }
+
+    public class InternalNode extends Node {
+
+        // Child nodes.
+        protected ArrayList<Node> childs;
+        protected InternalNode left;
+        protected InternalNode right;
+        // Number of pairs inside the subtree.
+        protected int count;
+        // Messages not yet flushed to the childs in write optimized mode, oldest first.
+        protected ArrayList<BufferedMessage> buffer;
+
+        public InternalNode() {
+            super(internalNodeMinDegree, internalNodeMaxDegree);
+            this.childs = new ArrayList<>(this.maxDegree + 1);
+            this.left = null;
+            this.right = null;
+            this.count = 0;
+            this.buffer = new ArrayList<>(0);
+        }
+
+        /**
+         * @param key key to look for
+         * @return index of the child which may contain the key.
+         */
+        protected int childIndex(K key) {
+            int i = 0;
+            while (i < this.degree) {
+                if (this.keys.get(i).compareTo(key) > 0) {
+                    break;
+                }
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        protected int removeRange(K from, K to) {
+            int removed = 0;
+            for (int i = this.childs.size() - 1; i >= 0; i--) {
+                // Child i only contains keys inside [keys[i - 1], keys[i]].
+                K lower = i > 0 ? this.keys.get(i - 1) : null;
+                K upper = i < this.degree ? this.keys.get(i) : null;
+                if (from != null && upper != null && upper.compareTo(from) < 0) continue;
+                if (to != null && lower != null && lower.compareTo(to) >= 0) continue;
+
+                Node child = this.childs.get(i);
+                boolean covered = (from == null || (lower != null && lower.compareTo(from) >= 0))
+                        && (to == null || (upper != null && upper.compareTo(to) < 0));
+                if (covered) {
+                    // Whole subtree is inside the range, detach it without visiting it.
+                    removed += countOf(child);
+                    if (!secondaryIndexes.isEmpty()) {
+                        // Secondary indexes still need every removed pair.
+                        child.removeRange(from, to);
+                    }
+                    detachChild(i);
+                } else {
+                    removed += child.removeRange(from, to);
+                    if (countOf(child) == 0) detachChild(i);
+                }
+            }
+            this.count -= removed;
+            return removed;
+        }
+
+        /**
+         * Removes the child at index together with one of its separator keys and unlinks it from its siblings.
+         * @param index index of the child to remove.
+         */
+        protected void detachChild(int index) {
+            Node child = this.childs.remove(index);
+            if (this.degree > 0) {
+                this.keys.remove(index > 0 ? index - 1 : 0);
+                this.degree--;
+            }
+            child.parent = null;
+
+            // Unlink every level of the subtree from its left and right siblings.
+            Node leftEdge = child;
+            Node rightEdge = child;
+            while (!leftEdge.isLeafNode()) {
+                InternalNode leftNode = (InternalNode) leftEdge;
+                InternalNode rightNode = (InternalNode) rightEdge;
+                if (leftNode.left != null) leftNode.left.right = rightNode.right;
+                if (rightNode.right != null) rightNode.right.left = leftNode.left;
+                leftNode.left = null;
+                rightNode.right = null;
+                if (leftNode.childs.isEmpty() || rightNode.childs.isEmpty()) {
+                    // Lower levels were already detached.
+                    return;
+                }
+                leftEdge = leftNode.childs.get(0);
+                rightEdge = rightNode.childs.get(rightNode.childs.size() - 1);
+            }
+            LeafNode leftLeaf = (LeafNode) leftEdge;
+            LeafNode rightLeaf = (LeafNode) rightEdge;
+            if (leftLeaf.left != null) leftLeaf.left.right = rightLeaf.right;
+            if (rightLeaf.right != null) rightLeaf.right.left = leftLeaf.left;
+            leftLeaf.left = null;
+            rightLeaf.right = null;
+        }
+
+
+        /**
+         * Inserts a separator key and the right node of a split child at index.
+         *
+         * @param index index of the split child
+         * @param key   separator key between the split child and right
+         * @param right right node of the split
+         */
+        protected void insertChild(int index, K key, Node right) {
+            this.keys.add(index, key);
+            this.childs.add(index + 1, right);
+            right.parent = this;
+            this.degree++;
+        }
+
+        /**
+         * Splits the node from the middle. The middle key moves up and is no longer part of either node.
+         *
+         * @return the new right node.
+         */
+        protected InternalNode split() {
+            int middle = this.degree / 2;
+            K oldKey = this.keys.get(middle);
+
+            // Create a new right node.
+            InternalNode newRight = new InternalNode();
+            newRight.degree = this.degree - middle - 1;
+            newRight.parent = this.parent;
+            newRight.keys.addAll(this.keys.subList(middle + 1, this.degree));
+            newRight.childs.addAll(this.childs.subList(middle + 1, this.degree + 1));
+
+            // Update the parent pointer of new right child nodes.
+            for (Node child : newRight.childs) {
+                child.parent = newRight;
+                newRight.count += countOf(child);
+            }
+            this.count -= newRight.count;
+
+            // Modify left and right pointers
+            newRight.right = this.right;
+            if (newRight.right != null) newRight.right.left = newRight;
+            this.right = newRight;
+            newRight.left = this;
+
+            // Move the buffered messages of the moved childs to the new right node.
+            Iterator<BufferedMessage> messages = this.buffer.iterator();
+            while (messages.hasNext()) {
+                BufferedMessage message = messages.next();
+                if (message.key.compareTo(oldKey) >= 0) {
+                    newRight.buffer.add(message);
+                    messages.remove();
+                }
+            }
+
+            // Make the current node left.
+            this.degree = middle;
+            this.keys = new ArrayList<>(this.keys.subList(0, middle));
+            this.childs = new ArrayList<>(this.childs.subList(0, middle + 1));
+            incrementInternalNodeSplits();
+            return newRight;
+        }
+
+        @Override
+        public void Print() {
+            System.out.println(this.keys.toString());
+            this.childs.forEach(Node::Print);
+        }
+
+    }
+
+    public class LeafNode extends Node {
+        // Values of the pairs, a ValueBlock if value blocks are enabled.
+        protected List<V> values;
+        protected LeafNode left;
+        protected LeafNode right;
+        // Fingerprint of the key at the same index. Null if leaf fingerprints are disabled.
+        protected byte[] fingerprints;
+
+        public LeafNode() {
+            super(minNumberOfValues, maxNumberOfValues);
+            this.values = valueCodec != null ? new ValueBlock(this.maxDegree + 1) : new ArrayList<>(this.maxDegree);
+            this.left = null;
+            this.right = null;
+            this.fingerprints = leafFingerprints ? new byte[this.maxDegree + 1] : null;
+        }
+
+        /**
+         * @return values as a ValueBlock, only if value blocks are enabled.
+         */
+        @SuppressWarnings("unchecked")
+        private ValueBlock valueBlock() {
+            return (ValueBlock) this.values;
+        }
+
+        /**
+         * Recomputes the fingerprints of all the keys inside the leaf.
+         */
+        protected void buildFingerprints() {
+            this.fingerprints = new byte[Math.max(this.maxDegree, this.degree) + 1];
+            for (int i = 0; i < this.degree; i++) {
+                this.fingerprints[i] = fingerprint(this.keys.get(i));
+            }
+        }
+
+        @Override
+        public boolean isLeafNode() {
+            return true;
+        }
+
+        /**
+         * Finds the key inside the leaf node.
+         *
+         * @param key key to look for
+         * @return Value if key is found otherwise null
+         */
+        protected V find(K key) {
+            if (this.degree <= 0) {
+                return null;
+            }
+            if (this.fingerprints != null) {
+                // Only compare the keys whose fingerprint matches.
+                byte f = fingerprint(key);
+                for (int j = 0; j < this.degree; j++) {
+                    if (this.fingerprints[j] == f && this.keys.get(j).compareTo(key) == 0) {
+                        return this.values.get(j);
+                    }
+                }
+                return null;
+            }
+            // Indexed loop, an iterator would be allocated per lookup.
+            for (int i = 0; i < this.degree; i++) {
+                if (this.keys.get(i).compareTo(key) == 0) {
+                    return this.values.get(i);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Inserts the key and value in front of the keys not smaller than key. Counts of the parent nodes and the
+         * split of an overflowing leaf node are left to the caller.
+         *
+         * @param key   key for the value
+         * @param value value to insert
+         */
+        protected void insert(K key, V value) {
+            // Indexes first, a throwing extractor must not leave the leaf half changed.
+            addToSecondaryIndexes(key, value);
+            int i = lowerBound(key);
+            this.keys.add(i, key);
+            this.values.add(i, value);
+            if (this.fingerprints != null) {
+                System.arraycopy(this.fingerprints, i, this.fingerprints, i + 1, this.degree - i);
+                this.fingerprints[i] = fingerprint(key);
+            }
+            this.degree++;
+        }
+
+        /**
+         * Splits the leaf node from the middle. The first key of the new right node becomes the separator.
+         *
+         * @return the new right node.
+         */
+        protected LeafNode split() {
+            // Make the current node left and generate right node from middle.
+            int middle = this.degree / 2;
+            LeafNode newRight = new LeafNode();
+            newRight.degree = this.degree - middle;
+            newRight.parent = this.parent;
+            newRight.keys.addAll(this.keys.subList(middle, this.degree));
+            if (valueCodec != null) {
+                // Move the encoded bytes instead of decoding and encoding every value again.
+                valueBlock().moveTo(newRight.valueBlock(), middle);
+            } else {
+                newRight.values.addAll(this.values.subList(middle, this.values.size()));
+            }
+            if (this.fingerprints != null) {
+                System.arraycopy(this.fingerprints, middle, newRight.fingerprints, 0, newRight.degree);
+            }
+
+            // Modify current to make it left.
+            this.degree = middle;
+            this.keys = new ArrayList<>(this.keys.subList(0, middle));
+            if (valueCodec == null) {
+                this.values = new ArrayList<>(this.values.subList(0, middle));
+            }
+
+            // Modify left and right pointers
+            newRight.right = this.right;
+            if (newRight.right != null) newRight.right.left = newRight;
+            this.right = newRight;
+            newRight.left = this;
+            incrementLeafNodeSplits();
+            return newRight;
+        }
+
+        /**
+         * Binary searches the keys of the leaf node.
+         *
+         * @param key key to look for
+         * @return index of the first key not smaller than key, degree if there is none.
+         */
+        protected int lowerBound(K key) {
+            int low = 0;
+            int high = this.degree;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (this.keys.get(middle).compareTo(key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @param key key to look for
+         * @return index of the first pair with the key, -1 if the key is not inside the leaf node.
+         */
+        protected int indexOf(K key) {
+            int i = lowerBound(key);
+            return i < this.degree && this.keys.get(i).compareTo(key) == 0 ? i : -1;
+        }
+
+        /**
+         * Removes the pair at index from the leaf node. Counts and keys of the parent nodes are left to the caller.
+         * @param index index of the pair to remove.
+         */
+        protected void removeAt(int index) {
+            removeFromSecondaryIndexes(this.keys.get(index), this.values.get(index));
+            this.keys.remove(index);
+            this.values.remove(index);
+            if (this.fingerprints != null) {
+                System.arraycopy(this.fingerprints, index + 1, this.fingerprints, index, this.degree - index - 1);
+            }
+            this.degree--;
+        }
+
+        @Override
+        protected int removeRange(K from, K to) {
+            int low = 0;
+            while (low < this.degree && from != null && this.keys.get(low).compareTo(from) < 0) {
+                low++;
+            }
+            int high = low;
+            while (high < this.degree && (to == null || this.keys.get(high).compareTo(to) < 0)) {
+                high++;
+            }
+            int removed = high - low;
+            if (removed == 0) {
+                return 0;
+            }
+            for (int i = low; i < high; i++) {
+                for (SecondaryIndex<K, V, ?> index : secondaryIndexes) {
+                    index.remove(this.keys.get(i), this.values.get(i));
+                }
+            }
+            this.keys.subList(low, high).clear();
+            this.values.subList(low, high).clear();
+            if (this.fingerprints != null) {
+                System.arraycopy(this.fingerprints, high, this.fingerprints, low, this.degree - high);
+            }
+            this.degree -= removed;
+            return removed;
+        }
+
+        @Override
+        public void Print() {
+            System.out.println(this.values.toString());
+        }
+    }
+
+    /**
+     * Values of a leaf node encoded by valueCodec one after the other inside a single array, with the end offset of
+     * every value inside a second array. Holds two arrays per leaf node instead of one object per value.
+     */
+    private class ValueBlock extends AbstractList<V> implements RandomAccess {
+        // Encoded values one after the other, followed by unused capacity.
+        private byte[] data;
+        // End offset inside data of the encoded value at the same index.
+        private int[] ends;
+        // Number of values.
+        private int size;
 
         /**
-         * Return list of N values from key (inclusive).
-         * @param key key to search from.
-         * @param n number of pairs to return from next of key.
-         * @return list of values to return.
+         * @param capacity number of values the block holds before growing
          */
-        public abstract List<Pair<K, V>> getNKeyValPair(K key, int n);
+        private ValueBlock(int capacity) {
+            this.data = new byte[0];
+            this.ends = new int[capacity];
+            this.size = 0;
+        }
+
+        @Override
+        public V get(int index) {
+            Objects.checkIndex(index, this.size);
+            int start = start(index);
+            return valueCodec.decode(this.data, start, this.ends[index] - start);
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public V set(int index, V value) {
+            V old = get(index);
+            byte[] encoded = valueCodec.encode(value);
+            int start = start(index);
+            int end = this.ends[index];
+            int used = start(this.size);
+            int delta = encoded.length - (end - start);
+            ensureData(used + delta);
+            System.arraycopy(this.data, end, this.data, end + delta, used - end);
+            System.arraycopy(encoded, 0, this.data, start, encoded.length);
+            for (int i = index; i < this.size; i++) {
+                this.ends[i] += delta;
+            }
+            return old;
+        }
+
+        @Override
+        public void add(int index, V value) {
+            if (index < 0 || index > this.size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + this.size);
+            }
+            byte[] encoded = valueCodec.encode(value);
+            int start = start(index);
+            int used = start(this.size);
+            ensureData(used + encoded.length);
+            System.arraycopy(this.data, start, this.data, start + encoded.length, used - start);
+            System.arraycopy(encoded, 0, this.data, start, encoded.length);
+            if (this.size == this.ends.length) {
+                this.ends = Arrays.copyOf(this.ends, Math.max(1, 2 * this.size));
+            }
+            System.arraycopy(this.ends, index, this.ends, index + 1, this.size - index);
+            this.ends[index] = start + encoded.length;
+            this.size++;
+            for (int i = index + 1; i < this.size; i++) {
+                this.ends[i] += encoded.length;
+            }
+            this.modCount++;
+        }
+
+        @Override
+        public V remove(int index) {
+            V old = get(index);
+            removeRange(index, index + 1);
+            return old;
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            if (fromIndex >= toIndex) return;
+            int start = start(fromIndex);
+            int end = this.ends[toIndex - 1];
+            int used = start(this.size);
+            System.arraycopy(this.data, end, this.data, start, used - end);
+            int removed = toIndex - fromIndex;
+            for (int i = toIndex; i < this.size; i++) {
+                this.ends[i - removed] = this.ends[i] - (end - start);
+            }
+            this.size -= removed;
+            this.modCount++;
+        }
 
         /**
-         * @return latest Leaf left node
+         * Moves the values from index on to the end of an empty block, copying their encoded bytes. Trims this block
+         * to the bytes it keeps.
+         *
+         * @param target empty block receiving the values
+         * @param index  index of the first value to move
          */
-        protected abstract LeafNode refreshLeft();
+        private void moveTo(ValueBlock target, int index) {
+            int start = start(index);
+            int used = start(this.size);
+            int moved = this.size - index;
+            target.data = Arrays.copyOfRange(this.data, start, used);
+            if (target.ends.length < moved) {
+                target.ends = new int[moved];
+            }
+            for (int i = 0; i < moved; i++) {
+                target.ends[i] = this.ends[index + i] - start;
+            }
+            target.size = moved;
+            target.modCount++;
+            this.data = Arrays.copyOf(this.data, start);
+            this.size = index;
+            this.modCount++;
+        }
 
         /**
-         * @return the min key inside the subtree.
+         * @return estimated number of bytes of the block and its arrays.
          */
-        protected abstract K minKey();
+        private long bytes() {
+            return VALUE_BLOCK_BYTES + this.data.length + (long) Integer.BYTES * this.ends.length;
+        }
 
         /**
-         * Prints the tree.
+         * @param index index of a value, or size for the end of the used bytes
+         * @return start offset of the encoded value at index inside data.
          */
-        public abstract void Print();
+        private int start(int index) {
+            return index == 0 ? 0 : this.ends[index - 1];
+        }
 
         /**
-         * Determines if the Node is deficient or not.
+         * Grows data to hold at least capacity bytes, by a quarter more than needed so that consecutive inserts do
+         * not copy the whole block every time.
          *
-         * @return a boolean indicating whether the Node is deficient or not
+         * @param capacity number of bytes data must hold
          */
-        public boolean isDeficient() {
-            return this.degree < this.minDegree;
+        private void ensureData(int capacity) {
+            if (capacity > this.data.length) {
+                this.data = Arrays.copyOf(this.data, capacity + (capacity >> 2));
+            }
+        }
+    }
+
+    /**
+     * Cursor walking the leaf chain in key order. seek moves forward inside the current or the next leaf node and
+     * only descends from the root when the target is further away.
+     */
+    public class Cursor {
+        // Leaf node of the current pair. Null once the cursor moved past the last pair.
+        private LeafNode leaf;
+        // Index of the current pair inside leaf.
+        private int index;
+
+        private Cursor() {
+            this.leaf = leftLeafNode;
+            this.index = 0;
+            skipEmptyLeaves();
         }
 
         /**
-         * Determines if the Node is capable of lending one of its degree to a deficient node.
-         *
-         * @return a boolean indicating whether or not the Node has enough degree degree in order to give one away.
+         * @return True if the cursor is positioned at a pair otherwise false.
          */
-        public boolean isLendable() {
-            return this.degree > this.minDegree;
+        public boolean isValid() {
+            return this.leaf != null;
         }
 
         /**
-         * Determines if the Node is capable of being merged with.
-         *
-         * @return a boolean indicating whether or not the Node can be merged with.
+         * @return key of the current pair.
          */
-        public boolean isMergeable() {
-            return this.degree == this.minDegree;
+        public K getKey() {
+            return this.leaf.keys.get(this.index);
         }
 
         /**
-         * Convenient method to determine if the current node is a LeafNode or not.
-         *
-         * @return True if Node is a LeafNode else returns False.
+         * @return value of the current pair.
          */
-        public boolean isLeafNode() {
-            return false;
+        public V getVal() {
+            return this.leaf.values.get(this.index);
         }
-    }
-
-    public class InternalNode extends Node {
-
-        // Child nodes.
-        protected ArrayList<Node> childs;
-        protected InternalNode left;
-        protected InternalNode right;
 
-        public InternalNode() {
-            super(internalNodeMinDegree, internalNodeMaxDegree);
-            this.childs = new ArrayList<>(this.maxDegree + 1);
-            this.left = null;
-            this.right = null;
+        /**
+         * Moves to the next pair.
+         */
+        public void next() {
+            this.index++;
+            skipEmptyLeaves();
         }
 
-        @Override
-        protected V find(K key) {
-            int i = 0;
-            while (i < this.degree) {
-                if (this.keys.get(i).compareTo(key) > 0) {
-                    break;
+        /**
+         * Moves forward to the first pair whose key is not smaller than key. Never moves backwards.
+         *
+         * @param key key to seek to
+         */
+        public void seek(K key) {
+            if (this.leaf == null || getKey().compareTo(key) >= 0) {
+                return;
+            }
+            LeafNode last = this.leaf;
+            if (last.keys.get(last.degree - 1).compareTo(key) < 0) {
+                LeafNode next = last.right;
+                if (next != null && next.degree > 0 && next.keys.get(next.degree - 1).compareTo(key) >= 0) {
+                    // Target is inside the next leaf.
+                    this.leaf = next;
+                    this.index = 0;
+                } else {
+                    // Target is far away, descend from the root.
+                    this.leaf = findLowerBoundLeaf(key);
+                    this.index = 0;
                 }
-                i++;
             }
-            return this.childs.get(i).find(key);
-        }
-
-        @Override
-        public List<Pair<K, V>> getNKeyValPair(K key, int n){
-            int i = 0;
-            while (i < this.degree) {
-                if (this.keys.get(i).compareTo(key) > 0) {
-                    break;
+            while (this.leaf != null) {
+                while (this.index < this.leaf.degree && this.leaf.keys.get(this.index).compareTo(key) < 0) {
+                    this.index++;
                 }
-                i++;
+                if (this.index < this.leaf.degree) {
+                    return;
+                }
+                this.leaf = this.leaf.right;
+                this.index = 0;
             }
-            return this.childs.get(i).getNKeyValPair(key, n);
         }
 
-        @Override
-        protected Node insert(K key, V value) {
-            int i = 0;
-            while (i < this.degree) {
-                if (this.keys.get(i).compareTo(key) > 0) {
-                    break;
-                }
-                i++;
+        /**
+         * Moves to the next leaf node while the current one has no more pairs.
+         */
+        private void skipEmptyLeaves() {
+            while (this.leaf != null && this.index >= this.leaf.degree) {
+                this.leaf = this.leaf.right;
+                this.index = 0;
             }
-            return this.childs.get(i).insert(key, value);
         }
+    }
 
-        @Override
-        protected boolean remove(K key) {
+    /**
+     * Descends from the root to the left most leaf node which may contain a key not smaller than key.
+     *
+     * @param key key to look for
+     * @return leaf node for the key.
+     */
+    private LeafNode findLowerBoundLeaf(K key) {
+        Node node = this.root;
+        while (!node.isLeafNode()) {
+            InternalNode internalNode = (InternalNode) node;
             int i = 0;
-            while (i < this.degree) {
-                if (this.keys.get(i).compareTo(key) > 0) {
-                    break;
-                }
+            while (i < internalNode.degree && internalNode.keys.get(i).compareTo(key) < 0) {
                 i++;
             }
-            return this.childs.get(i).remove(key);
+            node = internalNode.childs.get(i);
         }
+        return (LeafNode) node;
+    }
 
-        @Override
-        protected LeafNode refreshLeft() {
-            return this.childs.get(0).refreshLeft();
+    /**
+     * Outcome of a compaction.
+     */
+    public static class CompactionResult {
+        private final int leafNodesBefore;
+        private final int leafNodesAfter;
+        private final int heightBefore;
+        private final int heightAfter;
+        private final long bytesReclaimed;
+
+        private CompactionResult(int leafNodesBefore, int leafNodesAfter, int heightBefore, int heightAfter,
+                                 long bytesReclaimed) {
+            this.leafNodesBefore = leafNodesBefore;
+            this.leafNodesAfter = leafNodesAfter;
+            this.heightBefore = heightBefore;
+            this.heightAfter = heightAfter;
+            this.bytesReclaimed = bytesReclaimed;
         }
 
+        public int getLeafNodesBefore() {
+            return leafNodesBefore;
+        }
 
-        /**
-         * Recursively insert nodes into the parent. Split the InternalNode if split is required.
-         *
-         * @param left  left node of split to insert
-         * @param right right node of split to insert
-         * @param key   old key value of the split.
-         * @return New parent node if split is done otherwise null.
-         */
-        protected Node insertNode(Node left, Node right, K key) {
-            // Directly inserts the keys and childs if the degree is zero.
-            if (this.degree == 0) {
-                this.keys.add(key);
-                this.childs.add(left);
-                this.childs.add(right);
-                this.degree++;
-                left.parent = this;
-                right.parent = this;
-                return this;
-            }
-
-            // Find the location of key
-            int i = 0;
-            while (i < this.degree) {
-                if (this.keys.get(i).compareTo(key) > 0) {
-                    break;
-                }
-                i++;
-            }
-
-            // Insert left at index i and right at the end.
-            this.keys.add(i, key);
-            this.childs.add(i + 1, right);
-            this.degree++;
-
-            // Determine if you need to split
-            if (this.degree <= this.maxDegree) {
-                // No need to split.
-                return null;
-            }
-
-            // Split is required. Split from the middle.
-            int middle = this.degree / 2;
-
-            // Create a new right node.
-            InternalNode newRight = new InternalNode();
-            newRight.degree = this.degree - middle - 1;
-            newRight.parent = this.parent;
-
-            // If the parent node is empty, then create a new InternalNode as parent.
-            if (this.parent == null) {
-                InternalNode newParent = new InternalNode();
-                newRight.parent = newParent;
-                this.parent = newParent;
-                incrementHeight();
-            }
-            newRight.keys.addAll(this.keys.subList(middle + 1, this.degree));
-            newRight.childs.addAll(this.childs.subList(middle + 1, this.degree + 1));
-
-            // Update the parent pointer of new right child nodes.
-            newRight.childs.forEach(child -> child.parent = newRight);
-
-            // Modify left and right pointers
-            newRight.right = this.right;
-            this.right = newRight;
-            newRight.left = this;
+        public int getLeafNodesAfter() {
+            return leafNodesAfter;
+        }
 
-            // Make the current node left.
-            this.degree = middle;
-            K oldKey = this.keys.get(middle);
-            this.keys = new ArrayList<>(this.keys.subList(0, middle));
-            this.childs = new ArrayList<>(this.childs.subList(0, middle + 1));
+        public int getHeightBefore() {
+            return heightBefore;
+        }
 
-            // Recursively call insertNode for newly created left and right node.
-            incrementInternalNodeSplits();
-            return this.parent.insertNode(this, newRight, oldKey);
+        public int getHeightAfter() {
+            return heightAfter;
         }
 
         /**
-         * If internal node contains removedKey then updates key value by choosing correct value from child nodes.
-         * Recursively travels up to the root node to make sure that no internal node contains removedKey.
-         * @param removedKey key that has been removed from leaf node.
+         * @return change of the height, negative if the tree got shorter.
          */
-        protected void refreshKey(K removedKey) {
-            int index = this.keys.indexOf(removedKey);
-            if (index >= 0) {
-                this.keys.set(index, this.childs.get(index + 1).minKey());
-            }
-
-            // Base case
-            if (this.parent != null) {
-                this.parent.refreshKey(removedKey);
-            }
+        public int getHeightChange() {
+            return heightAfter - heightBefore;
         }
 
-        @Override
-        protected K minKey() {
-            if (this.degree > 0) {
-                return this.childs.get(0).minKey();
-            }
-            return null;
+        /**
+         * @return estimated number of bytes reclaimed, negative if the tree grew.
+         */
+        public long getBytesReclaimed() {
+            return bytesReclaimed;
         }
 
         @Override
-        public void Print() {
-            System.out.println(this.keys.toString());
-            this.childs.forEach(Node::Print);
+        public String toString() {
+            return "leaf nodes " + leafNodesBefore + " -> " + leafNodesAfter + ", height " + heightBefore + " -> "
+                    + heightAfter + ", ~" + bytesReclaimed + " bytes reclaimed";
         }
-
     }
 
-    public class LeafNode extends Node {
-        protected ArrayList<V> values;
-        protected LeafNode left;
-        protected LeafNode right;
-
-        public LeafNode() {
-            super(minNumberOfValues, maxNumberOfValues);
-            this.values = new ArrayList<>(this.maxDegree);
-            this.left = null;
-            this.right = null;
+    /**
+     * InternalNodes visited by a descent from the root, together with the index of the child taken at each of them.
+     */
+    private class Path {
+        // Visited InternalNodes, root first.
+        private final ArrayList<InternalNode> nodes;
+        // Index of the child taken at the InternalNode of the same level.
+        private int[] indexes;
+        // Number of levels on the path.
+        private int size;
+
+        private Path() {
+            this.nodes = new ArrayList<>();
+            this.indexes = new int[8];
+            this.size = 0;
         }
 
-        @Override
-        public boolean isLeafNode() {
-            return true;
+        private void clear() {
+            this.nodes.clear();
+            this.size = 0;
         }
 
-        @Override
-        protected V find(K key) {
-            if (this.degree <= 0) {
-                return null;
-            }
-            int i = 0;
-            for (K k : this.keys) {
-                if (k.compareTo(key) == 0) {
-                    break;
-                }
-                i++;
+        /**
+         * Drops the levels from level downwards.
+         *
+         * @param level number of levels to keep
+         */
+        private void truncate(int level) {
+            while (this.size > level) {
+                this.nodes.remove(--this.size);
             }
-            if (i < this.degree) return this.values.get(i);
-            return null;
         }
 
-        @Override
-        public List<Pair<K, V>> getNKeyValPair(K key, int n){
-            List<Pair<K, V>> values = new ArrayList<>();
-
-            // Find The index
-            int i = 0;
-            for (K k : this.keys) {
-                if (k.compareTo(key) == 0) {
-                    break;
-                }
-                i++;
-            }
-
-            // Add pairs.
-            if (i < this.degree) {
-                values.add(new Pair<>(this.keys.get(i), this.values.get(i)));
-
-                // Add the next N pair
-                while(++i < this.degree && n > 0){
-                    values.add(new Pair<>(this.keys.get(i), this.values.get(i)));
-                    n--;
-                }
-                if(n >0 && this.right != null){
-                    values.addAll(this.right.getNKeyValPair(n));
-                }
-
+        /**
+         * Replaces the levels of this path with the ones of other.
+         *
+         * @param other path to copy
+         */
+        private void copy(Path other) {
+            clear();
+            for (int level = 0; level < other.size; level++) {
+                push(other.nodes.get(level), other.indexes[level]);
             }
-            return values;
         }
 
         /**
-         * Recursive method to get N elements from a node.
-         * @param n Number of elements require.
-         * @return List of N elements pair.
+         * Reverses the order of the levels, for paths filled from the bottom up.
          */
-        public List<Pair<K, V>> getNKeyValPair(int n){
-            List<Pair<K, V>> values = new ArrayList<>();
-            int i = 0;
-
-            // Add the next N pair
-            while(i < this.degree && n > 0){
-                values.add(new Pair<>(this.keys.get(i), this.values.get(i)));
-                n--;
-                i++;
-            }
-            if(n >0 && this.right != null){
-                values.addAll(this.right.getNKeyValPair(n));
+        private void reverse() {
+            Collections.reverse(this.nodes);
+            for (int low = 0, high = this.size - 1; low < high; low++, high--) {
+                int index = this.indexes[low];
+                this.indexes[low] = this.indexes[high];
+                this.indexes[high] = index;
             }
-            return values;
         }
 
-        @Override
-        protected K minKey() {
-            if (this.degree > 0) {
-                return this.keys.get(0);
+        private void push(InternalNode node, int index) {
+            if (this.size == this.indexes.length) {
+                this.indexes = Arrays.copyOf(this.indexes, 2 * this.size);
             }
-            return null;
+            this.nodes.add(node);
+            this.indexes[this.size++] = index;
+        }
+    }
+
+    /**
+     * Pending insert or remove of a key buffered inside an InternalNode in write optimized mode.
+     */
+    private class BufferedMessage {
+        protected final K key;
+        protected final V value;
+        // True for remove, false for insert.
+        protected final boolean delete;
+
+        private BufferedMessage(K key, V value, boolean delete) {
+            this.key = key;
+            this.value = value;
+            this.delete = delete;
+        }
+    }
+
+    /**
+     * Spliterator over a key range. Holds the subtrees not visited yet in key order and splits them at InternalNode
+     * boundaries by subtree sizes, expanding a single remaining InternalNode into its children when needed.
+     */
+    private class RangeSpliterator implements Spliterator<Pair<K, V>> {
+        // Subtrees not visited yet, in key order.
+        private final ArrayDeque<Node> pending;
+        // Lowest key to return (inclusive). Null for no lower bound.
+        private final K from;
+        // Key to stop at (exclusive). Null for no upper bound.
+        private final K to;
+        // Leaf currently being visited.
+        private LeafNode leaf;
+        // Index of the next key inside leaf.
+        private int index;
+        // Estimated number of remaining pairs.
+        private long estimate;
+
+        private RangeSpliterator(ArrayDeque<Node> pending, K from, K to, long estimate) {
+            this.pending = pending;
+            this.from = from;
+            this.to = to;
+            this.leaf = null;
+            this.index = 0;
+            this.estimate = estimate;
         }
 
-        /**
-         * @return new parent node if insert required a split else null.
-         */
         @Override
-        protected Node insert(K key, V value) {
-            // Inserts the data first
-            int i = 0;
-            while (i < this.degree) {
-                if (this.keys.get(i).compareTo(key) >= 0) {
-                    break;
+        public boolean tryAdvance(Consumer<? super Pair<K, V>> action) {
+            while (true) {
+                if (this.leaf != null && this.index < this.leaf.degree) {
+                    K key = this.leaf.keys.get(this.index);
+                    if (this.to != null && key.compareTo(this.to) >= 0) {
+                        // Rest of the range is past the upper bound.
+                        this.leaf = null;
+                        this.pending.clear();
+                        return false;
+                    }
+                    V value = this.leaf.values.get(this.index++);
+                    if (this.from == null || key.compareTo(this.from) >= 0) {
+                        if (this.estimate > 0) this.estimate--;
+                        action.accept(new Pair<>(key, value));
+                        return true;
+                    }
+                    continue;
+                }
+                Node node = this.pending.pollFirst();
+                if (node == null) {
+                    this.leaf = null;
+                    return false;
+                }
+                if (node.isLeafNode()) {
+                    this.leaf = (LeafNode) node;
+                    this.index = 0;
+                } else {
+                    expand((InternalNode) node);
                 }
-                i++;
             }
-            this.keys.add(i, key);
-            this.values.add(i, value);
-            this.degree++;
+        }
 
-            // Determine if we need to split or not.
-            if (this.degree <= this.maxDegree) {
-                // No need to split.
+        @Override
+        public Spliterator<Pair<K, V>> trySplit() {
+            // Expand a single remaining InternalNode into its children.
+            while (this.pending.size() == 1 && !this.pending.peekFirst().isLeafNode()) {
+                expand((InternalNode) this.pending.pollFirst());
+            }
+            int size = this.pending.size();
+            if (size < 2) {
                 return null;
             }
 
-            // Split is require.
-            // Make the current node left and generate right node from middle.
-            int middle = this.degree / 2;
-            LeafNode newRight = new LeafNode();
-            newRight.degree = this.degree - middle;
-            newRight.parent = this.parent;
-
-            // If the parent node is empty, then create a new InternalNode as the parent of current node.
-            if (this.parent == null) {
-                InternalNode newParent = new InternalNode();
-                this.parent = newParent;
-                newRight.parent = newParent;
-                incrementHeight();
+            // Hand the leaf in progress and the subtrees holding the first half of the pairs to the prefix spliterator.
+            long prefixCount = this.leaf != null ? this.leaf.degree - this.index : 0;
+            long total = prefixCount;
+            for (Node node : this.pending) {
+                total += countOf(node);
             }
-            newRight.keys.addAll(this.keys.subList(middle, this.degree));
-            newRight.values.addAll(this.values.subList(middle, this.values.size()));
-
-            // Modify current to make it left.
-            this.degree = middle;
-            this.keys = new ArrayList<>(this.keys.subList(0, middle));
-            this.values = new ArrayList<>(this.values.subList(0, middle));
-
-            // Modify left and right pointers
-            newRight.right = this.right;
-            this.right = newRight;
-            newRight.left = this;
-
-            // Split is done. Insert the generated into the parent.
-            incrementLeafNodeSplits();
-            K oldKey = null;
-            if (newRight.keys.size() > 0) oldKey = newRight.keys.get(0);
-            return this.parent.insertNode(this, newRight, oldKey);
-        }
-
-        @Override
-        protected boolean remove(K key) {
-            int index = this.keys.indexOf(key);
-            if (index < 0) {
-                return false;
+            ArrayDeque<Node> prefix = new ArrayDeque<>();
+            while (this.pending.size() > 1 && (prefix.isEmpty() || 2 * prefixCount < total)) {
+                Node node = this.pending.pollFirst();
+                prefixCount += countOf(node);
+                prefix.addLast(node);
             }
-            this.keys.remove(index);
-            this.values.remove(index);
-            this.degree--;
+            long prefixEstimate = Math.min(this.estimate, prefixCount);
+            RangeSpliterator split = new RangeSpliterator(prefix, this.from, this.to, prefixEstimate);
+            split.leaf = this.leaf;
+            split.index = this.index;
+            this.leaf = null;
+            this.index = 0;
+            this.estimate -= prefixEstimate;
+            return split;
+        }
 
-            if (this.parent != null) {
-                this.parent.refreshKey(key);
+        /**
+         * Pushes the children of node which may contain keys inside the range to the front of pending.
+         *
+         * @param node InternalNode to expand.
+         */
+        private void expand(InternalNode node) {
+            for (int i = node.childs.size() - 1; i >= 0; i--) {
+                K lower = i > 0 ? node.keys.get(i - 1) : null;
+                K upper = i < node.degree ? node.keys.get(i) : null;
+                if (this.from != null && upper != null && upper.compareTo(this.from) < 0) continue;
+                if (this.to != null && lower != null && lower.compareTo(this.to) >= 0) continue;
+                this.pending.addFirst(node.childs.get(i));
             }
-            return true;
         }
 
         @Override
-        protected LeafNode refreshLeft() {
-            if (this.degree < 0) {
-                return null;
-            }
-            return this;
+        public long estimateSize() {
+            return this.estimate;
         }
 
         @Override
-        public void Print() {
-            System.out.println(this.values.toString());
+        public int characteristics() {
+            if (this.from == null && this.to == null) {
+                // Subtree counts are exact when the range is not bounded.
+                return Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED | Spliterator.SUBSIZED;
+            }
+            return Spliterator.ORDERED | Spliterator.NONNULL;
         }
     }
 }
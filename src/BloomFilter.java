@@ -0,0 +1,107 @@
+public class BloomFilter<K> {
+    // Bits of the filter.
+    private final long[] bits;
+    // Number of bits inside the filter.
+    private final int numberOfBits;
+    // Number of hash functions applied for each key.
+    private final int numberOfHashes;
+    // Number of keys the filter was sized for.
+    private final int expectedInsertions;
+    // Configured false positive rate.
+    private final double falsePositiveRate;
+    // Number of keys added so far.
+    private int insertions;
+
+    /**
+     * Create a new BloomFilter sized for expected number of keys and false positive rate.
+     *
+     * @param expectedInsertions number of keys the filter is expected to hold. Minimum 1.
+     * @param falsePositiveRate  wanted false positive rate, between 0 and 1 (exclusive).
+     */
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        this.expectedInsertions = Math.max(1, expectedInsertions);
+        this.falsePositiveRate = falsePositiveRate;
+
+        // m = -n * ln(p) / (ln 2)^2 and k = m / n * ln 2
+        long m = (long) Math.ceil(-this.expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.numberOfBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.numberOfHashes = Math.max(1, (int) Math.round((double) this.numberOfBits / this.expectedInsertions * Math.log(2)));
+        this.bits = new long[(this.numberOfBits + 63) / 64];
+        this.insertions = 0;
+    }
+
+    /**
+     * Adds the key into the filter.
+     *
+     * @param key key to add
+     */
+    public void add(K key) {
+        int hash1 = hash(key);
+        int hash2 = (hash1 >>> 16) | 1;
+        for (int i = 0; i < this.numberOfHashes; i++) {
+            int index = ((hash1 + i * hash2) & Integer.MAX_VALUE) % this.numberOfBits;
+            this.bits[index >>> 6] |= 1L << index;
+        }
+        this.insertions++;
+    }
+
+    /**
+     * Determines if the key might be inside the filter.
+     *
+     * @param key key to look for
+     * @return False if key was definitely never added otherwise true.
+     */
+    public boolean mightContain(K key) {
+        int hash1 = hash(key);
+        int hash2 = (hash1 >>> 16) | 1;
+        for (int i = 0; i < this.numberOfHashes; i++) {
+            int index = ((hash1 + i * hash2) & Integer.MAX_VALUE) % this.numberOfBits;
+            if ((this.bits[index >>> 6] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if more keys have been added than the filter was sized for.
+     */
+    public boolean isSaturated() {
+        return this.insertions > this.expectedInsertions;
+    }
+
+    /**
+     * @return number of keys added so far.
+     */
+    public int getInsertions() {
+        return insertions;
+    }
+
+    /**
+     * @return number of keys the filter was sized for.
+     */
+    public int getExpectedInsertions() {
+        return expectedInsertions;
+    }
+
+    /**
+     * @return configured false positive rate.
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * Spreads the hashCode of the key so that similar keys set different bits.
+     *
+     * @param key key to hash
+     * @return mixed hash of the key.
+     */
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+}
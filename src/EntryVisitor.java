@@ -0,0 +1,11 @@
+public interface EntryVisitor<K, V> {
+
+    /**
+     * Visits a pair of the tree.
+     *
+     * @param key key of the pair
+     * @param val value of the pair
+     * @return True to continue with the next pair, false to stop.
+     */
+    boolean visit(K key, V val);
+}
@@ -1,15 +1,19 @@
 import javax.swing.*;
 import java.awt.*;
-import java.io.IOException;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.function.Supplier;
 
 
 public class GUI {
     // Class constants
     private static final int TEXT_FIELD_COLUMN_SIZE = 10;
+    // Fraction of the maximum degree the nodes are filled to by a compaction.
+    private static final double COMPACTION_TARGET_FILL = 0.9;
 
     private BPlusTree<String, String> tree;
+    // Creates the empty trees the file is loaded into.
+    private final Supplier<BPlusTree<String, String>> treeFactory;
 
     // Section Labels.
     private JLabel insertSectionLabel;
@@ -25,6 +29,8 @@ public class GUI {
     private JLabel treeTotalSplitLabel;
     private JLabel treeParentSplitLabel;
     private JLabel treeLeafSplitLabel;
+    private JLabel treeCompactionLabel;
+    private JLabel treeReclaimedLabel;
 
     // Tree stats value labels.
     private JLabel depthLabel;
@@ -34,6 +40,8 @@ public class GUI {
     private JLabel totalSplitLabel;
     private JLabel parentSplitLabel;
     private JLabel leafSplitLabel;
+    private JLabel compactionLabel;
+    private JLabel reclaimedLabel;
 
     // Text fields for user inputs.
     private JTextField addKeyText;
@@ -50,9 +58,31 @@ public class GUI {
     private JButton loadBtn;
     private JButton saveBtn;
     private JButton modifyBtn;
-
-    public GUI(BPlusTree<String, String> tree) {
-        this.tree = tree;
+    private JButton cancelBtn;
+    private JButton compactBtn;
+
+    // Progress of the running load or save.
+    private JProgressBar progressBar;
+
+    // Runs load and save off the event dispatch thread.
+    private final AsyncTreeIO treeIO;
+    // Running load or save, null if there is none.
+    private AsyncTreeIO.IOFuture pendingIO;
+    // Whether a load has completed, which enables the tree operations.
+    private boolean treeLoaded;
+
+    /**
+     * Create a new GUI. Every load fills a new tree from treeFactory, which replaces the current tree only once the
+     * load succeeded.
+     *
+     * @param treeFactory creates an empty tree
+     */
+    public GUI(Supplier<BPlusTree<String, String>> treeFactory) {
+        this.treeFactory = treeFactory;
+        this.tree = treeFactory.get();
+        this.treeIO = new AsyncTreeIO();
+        this.pendingIO = null;
+        this.treeLoaded = false;
     }
 
     public void initializeGui() {
@@ -86,6 +116,8 @@ public class GUI {
         treeTotalFusionLabel = new JLabel("Total Number of Fusions: ");
         treeParentFusionLabel = new JLabel("Total Parent Fusions: ");
         treeLeafFusionLabel = new JLabel("Total Leaf Fusions: ");
+        treeCompactionLabel = new JLabel("Total Compactions: ");
+        treeReclaimedLabel = new JLabel("Bytes Reclaimed: ");
 
         depthLabel = new JLabel("0");
         totalSplitLabel = new JLabel("0");
@@ -94,6 +126,8 @@ public class GUI {
         totalFusionLabel = new JLabel("0");
         parentFusionLabel = new JLabel("0");
         leafFusionLabel = new JLabel("0");
+        compactionLabel = new JLabel("0");
+        reclaimedLabel = new JLabel("0");
     }
 
     private void initializeTextFields() {
@@ -123,26 +157,52 @@ public class GUI {
 
         modifyBtn = new JButton("Modify");
         modifyBtn.setEnabled(false);
+
+        cancelBtn = new JButton("Cancel");
+        cancelBtn.setEnabled(false);
+
+        compactBtn = new JButton("Compact Tree");
+        compactBtn.setEnabled(false);
+
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
     }
 
     private void assignActions() {
         loadBtn.addActionListener(e -> {
-            try {
-                Utils.loadBPlusTreeFromFile(Utils.INPUT_FILE, tree);
-                addBtn.setEnabled(true);
-                deleteBtn.setEnabled(true);
-                searchBtn.setEnabled(true);
-                saveBtn.setEnabled(true);
-                modifyBtn.setEnabled(true);
-                updateStats();
-                JOptionPane.showMessageDialog(null,
-                        "File load was Successful.");
-            } catch (IOException exception) {
-                JOptionPane.showMessageDialog(null,
-                        "Error while loading the file.\n" + Arrays.toString(exception.getStackTrace()));
+            // Load into a new tree, so a cancelled or failed load leaves the current tree unchanged.
+            BPlusTree<String, String> loadedTree = treeFactory.get();
+            startIO(treeIO.load(Utils.INPUT_FILE, loadedTree, this::showProgress));
+            pendingIO.whenComplete((loaded, error) -> SwingUtilities.invokeLater(() -> {
+                if (error == null) {
+                    tree = loadedTree;
+                    treeLoaded = true;
+                }
+                finishIO();
+                if (error == null) {
+                    JOptionPane.showMessageDialog(null,
+                            "File load was Successful.");
+                } else if (AsyncTreeIO.isCancelled(error)) {
+                    JOptionPane.showMessageDialog(null, "File load was cancelled, the tree is unchanged.");
+                } else {
+                    JOptionPane.showMessageDialog(null, "Error while loading the file, the tree is unchanged.\n"
+                            + Arrays.toString(error.getStackTrace()));
+                }
+            }));
+        });
+
+        cancelBtn.addActionListener(e -> {
+            if (pendingIO != null && !pendingIO.requestCancel()) {
+                JOptionPane.showMessageDialog(null, "Too late to cancel, the file operation is finishing.");
             }
         });
 
+        compactBtn.addActionListener(e -> {
+            BPlusTree.CompactionResult result = tree.compact(COMPACTION_TARGET_FILL);
+            updateStats();
+            JOptionPane.showMessageDialog(null, "Compacted the tree: " + result + ".");
+        });
+
         addBtn.addActionListener(e -> {
             String addKey = addKeyText.getText();
             String addValue = addValueText.getText();
@@ -227,16 +287,65 @@ public class GUI {
         });
 
         saveBtn.addActionListener(e -> {
-            try {
-                Utils.saveBPlusTreeFromFile(Utils.INPUT_FILE, tree);
-                JOptionPane.showMessageDialog(null, "Successfully saved the File.");
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(null,
-                        "Error while saving the file.\n" + Arrays.toString(ex.getStackTrace()));
-            }
+            startIO(treeIO.save(Utils.INPUT_FILE, tree, this::showProgress));
+            pendingIO.whenComplete((saved, error) -> SwingUtilities.invokeLater(() -> {
+                finishIO();
+                if (error == null) {
+                    JOptionPane.showMessageDialog(null, "Successfully saved the File.");
+                } else if (AsyncTreeIO.isCancelled(error)) {
+                    JOptionPane.showMessageDialog(null, "Save was cancelled, the file is unchanged.");
+                } else {
+                    JOptionPane.showMessageDialog(null,
+                            "Error while saving the file.\n" + Arrays.toString(error.getStackTrace()));
+                }
+            }));
         });
     }
 
+    /**
+     * Disables every tree operation while a load or save runs in the background.
+     *
+     * @param io the running load or save
+     */
+    private void startIO(AsyncTreeIO.IOFuture io) {
+        pendingIO = io;
+        setTreeButtonsEnabled(false);
+        loadBtn.setEnabled(false);
+        cancelBtn.setEnabled(true);
+        progressBar.setValue(0);
+    }
+
+    /**
+     * Enables the tree operations again once the load or save completed.
+     */
+    private void finishIO() {
+        pendingIO = null;
+        setTreeButtonsEnabled(treeLoaded);
+        loadBtn.setEnabled(true);
+        cancelBtn.setEnabled(false);
+        updateStats();
+    }
+
+    private void setTreeButtonsEnabled(boolean enabled) {
+        addBtn.setEnabled(enabled);
+        deleteBtn.setEnabled(enabled);
+        searchBtn.setEnabled(enabled);
+        saveBtn.setEnabled(enabled);
+        modifyBtn.setEnabled(enabled);
+        compactBtn.setEnabled(enabled);
+    }
+
+    /**
+     * Shows the progress of a load or save. Called from the I/O thread.
+     *
+     * @param done  amount of work done
+     * @param total total amount of work
+     */
+    private void showProgress(long done, long total) {
+        int percent = total > 0 ? (int) (100 * done / total) : 100;
+        SwingUtilities.invokeLater(() -> progressBar.setValue(percent));
+    }
+
     private JPanel createPanel() {
         // Grid layout.
         //add spacing in consideration of 4 spaces a row.
@@ -253,6 +362,9 @@ public class GUI {
         middlePanel.add(loadSaveSectionLabel);
         middlePanel.add(loadBtn);
         middlePanel.add(saveBtn);
+        middlePanel.add(progressBar);
+        middlePanel.add(cancelBtn);
+        middlePanel.add(compactBtn);
 
         // Insert section.
         middlePanel.add(insertSectionLabel);
@@ -317,10 +429,20 @@ public class GUI {
         leafFusionPanel.add(treeLeafFusionLabel);
         leafFusionPanel.add(leafFusionLabel);
 
+        JPanel compactionPanel = new JPanel();
+        compactionPanel.setLayout(new GridLayout(1, 2, 1, 1));
+        compactionPanel.add(treeCompactionLabel);
+        compactionPanel.add(compactionLabel);
+
+        JPanel reclaimedPanel = new JPanel();
+        reclaimedPanel.setLayout(new GridLayout(1, 2, 1, 1));
+        reclaimedPanel.add(treeReclaimedLabel);
+        reclaimedPanel.add(reclaimedLabel);
+
         // Append panel of each stats.
         middlePanel.add(treeDepthPanel);
-        middlePanel.add(new JPanel());
-        middlePanel.add(new JPanel());
+        middlePanel.add(compactionPanel);
+        middlePanel.add(reclaimedPanel);
         middlePanel.add(splitPanel);
         middlePanel.add(parentSplitPanel);
         middlePanel.add(leafSplitPanel);
@@ -339,6 +461,8 @@ public class GUI {
         totalFusionLabel.setText(String.valueOf(tree.getFusions()));
         parentFusionLabel.setText(String.valueOf(tree.getInternalNodeFusions()));
         leafFusionLabel.setText(String.valueOf(tree.getLeafNodeFusions()));
+        compactionLabel.setText(String.valueOf(tree.getCompactions()));
+        reclaimedLabel.setText(String.valueOf(tree.getReclaimedBytes()));
     }
 
 } //close class
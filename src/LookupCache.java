@@ -0,0 +1,167 @@
+import java.util.HashMap;
+
+public class LookupCache<K, V> {
+    // Maximum number of entries inside the cache.
+    private final int capacity;
+    // Slot index of every cached key.
+    private final HashMap<K, Integer> index;
+    // Cached keys by slot. Null if the slot is free.
+    private final Object[] keys;
+    // Cached values by slot.
+    private final Object[] values;
+    // Reference bit of every slot, set on hit and cleared by the clock hand.
+    private final boolean[] referenced;
+    // Current position of the clock hand.
+    private int hand;
+    // Number of slots handed out so far.
+    private int used;
+    // Number of lookups answered by the cache.
+    private long hits;
+    // Number of lookups not answered by the cache.
+    private long misses;
+
+    /**
+     * Create a new bounded LookupCache using CLOCK eviction.
+     *
+     * @param capacity maximum number of entries inside the cache. Minimum 1.
+     */
+    public LookupCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be at least 1: " + capacity);
+        }
+        this.capacity = capacity;
+        this.index = new HashMap<>(capacity * 2);
+        this.keys = new Object[capacity];
+        this.values = new Object[capacity];
+        this.referenced = new boolean[capacity];
+        this.hand = 0;
+        this.used = 0;
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    /**
+     * Finds the key inside the cache.
+     *
+     * @param key key to look for
+     * @return Value if key is cached otherwise null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        Integer slot = this.index.get(key);
+        if (slot == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        this.referenced[slot] = true;
+        return (V) this.values[slot];
+    }
+
+    /**
+     * Caches the value of a key, evicting a not recently used entry if the cache is full.
+     *
+     * @param key   key to cache
+     * @param value value of the key. Null values are not cached.
+     */
+    public void put(K key, V value) {
+        if (value == null) return;
+        Integer slot = this.index.get(key);
+        if (slot != null) {
+            this.values[slot] = value;
+            this.referenced[slot] = true;
+            return;
+        }
+        int free = this.used < this.capacity ? this.used++ : evict();
+        this.keys[free] = key;
+        this.values[free] = value;
+        this.referenced[free] = false;
+        this.index.put(key, free);
+    }
+
+    /**
+     * Removes the key from the cache.
+     *
+     * @param key key to remove
+     */
+    public void invalidate(K key) {
+        Integer slot = this.index.remove(key);
+        if (slot != null) {
+            this.keys[slot] = null;
+            this.values[slot] = null;
+            this.referenced[slot] = false;
+        }
+    }
+
+    /**
+     * Removes all the keys from the cache.
+     */
+    public void clear() {
+        this.index.clear();
+        for (int i = 0; i < this.used; i++) {
+            this.keys[i] = null;
+            this.values[i] = null;
+            this.referenced[i] = false;
+        }
+        this.used = 0;
+        this.hand = 0;
+    }
+
+    /**
+     * Moves the clock hand until a free or not recently used slot is found and empties it.
+     *
+     * @return index of the emptied slot.
+     */
+    private int evict() {
+        while (true) {
+            int slot = this.hand;
+            this.hand = (this.hand + 1) % this.capacity;
+            if (this.keys[slot] == null) {
+                return slot;
+            }
+            if (this.referenced[slot]) {
+                // Second chance.
+                this.referenced[slot] = false;
+            } else {
+                this.index.remove(this.keys[slot]);
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * @return number of entries inside the cache.
+     */
+    public int size() {
+        return this.index.size();
+    }
+
+    /**
+     * @return maximum number of entries inside the cache.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of lookups answered by the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups not answered by the cache.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return fraction of lookups answered by the cache, 0 if there was no lookup.
+     */
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
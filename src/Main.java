@@ -1,8 +1,21 @@
+import java.io.IOException;
+import java.util.function.Supplier;
+
 public class Main {
 
-    public static void main(String[] args) {
-        BPlusTree<String, String> tree = new BPlusTree<>(2, 3, 8, 16);
-        GUI gui = new GUI(tree);
+    public static void main(String[] args) throws IOException {
+        Supplier<BPlusTree<String, String>> treeFactory = () -> new BPlusTree<>(2, 3, 8, 16);
+        if (args.length > 0 && args[0].equals("--server")) {
+            // Headless mode: load the input file and share the tree over the network.
+            BPlusTree<String, String> tree = treeFactory.get();
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : TreeServer.DEFAULT_PORT;
+            Utils.loadBPlusTreeFromFile(Utils.INPUT_FILE, tree);
+            TreeServer server = new TreeServer(tree, port);
+            System.out.println("Serving " + tree.size() + " pairs on port " + server.getPort());
+            server.serve();
+            return;
+        }
+        GUI gui = new GUI(treeFactory);
         gui.initializeGui();
     }
 
@@ -0,0 +1,33 @@
+public class MutablePair<K, V> {
+    private K key;
+    private V val;
+
+    // A reusable pair class, filled by lookups to avoid allocating a Pair per result.
+    public MutablePair() {
+        this.key = null;
+        this.val = null;
+    }
+
+    public void set(K key, V val) {
+        this.key = key;
+        this.val = val;
+    }
+
+    public void clear() {
+        this.key = null;
+        this.val = null;
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    public V getVal() {
+        return val;
+    }
+
+    @Override
+    public String toString() {
+        return key + " : " + val;
+    }
+}
@@ -0,0 +1,462 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+public class PartitionedBPlusTree<K extends Comparable<K>, V> {
+
+    // minimum number of nodes internal node can contain. Minimum 1.
+    private final int internalNodeMinDegree;
+    // maximum number of nodes internal node can contain. Minimum 1.
+    private final int internalNodeMaxDegree;
+    // minimum number of values that leaf node can contain. Minimum 1.
+    private final int minNumberOfValues;
+    // maximum number of values that leaf node can contain. Minimum 1.
+    private final int maxNumberOfValues;
+    // Number of pairs a partition can hold before it is split.
+    private final int maxPartitionSize;
+    // Guards the partition table. Operations hold the read lock, re-partitioning holds the write lock.
+    private final ReentrantReadWriteLock tableLock;
+    // Partitions ordered by their lower bound.
+    private volatile List<Partition> partitions;
+    // Number of partition splits.
+    private int partitionSplits;
+
+    /**
+     * Create a new PartitionedBPlusTree.
+     *
+     * @param internalNodeMinDegree minimum number of nodes internal node can contain
+     * @param internalNodeMaxDegree maximum number of nodes internal node can contain
+     * @param minNumberOfValues     minimum number of values that leaf node can contain
+     * @param maxNumberOfValues     maximum number of values that leaf node can contain
+     * @param splitKeys             ascending keys at which the key space is initially split, may be empty
+     * @param maxPartitionSize      number of pairs a partition can hold before it is split
+     */
+    public PartitionedBPlusTree(int internalNodeMinDegree,
+                                int internalNodeMaxDegree,
+                                int minNumberOfValues,
+                                int maxNumberOfValues,
+                                List<K> splitKeys,
+                                int maxPartitionSize) {
+        this.internalNodeMinDegree = internalNodeMinDegree;
+        this.internalNodeMaxDegree = internalNodeMaxDegree;
+        this.minNumberOfValues = minNumberOfValues;
+        this.maxNumberOfValues = maxNumberOfValues;
+        this.maxPartitionSize = maxPartitionSize;
+        this.tableLock = new ReentrantReadWriteLock();
+        this.partitionSplits = 0;
+
+        List<Partition> initial = new ArrayList<>();
+        initial.add(new Partition(null, newTree()));
+        K previous = null;
+        for (K splitKey : splitKeys) {
+            if (previous != null && splitKey.compareTo(previous) <= 0) {
+                throw new IllegalArgumentException("Split keys must be in ascending order: " + splitKeys);
+            }
+            initial.add(new Partition(splitKey, newTree()));
+            previous = splitKey;
+        }
+        this.partitions = initial;
+    }
+
+    /**
+     * @return number of partitions.
+     */
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * @return number of partition splits done by re-partitioning.
+     */
+    public int getPartitionSplits() {
+        return partitionSplits;
+    }
+
+    /**
+     * Finds the key.
+     *
+     * @param key key to look for
+     * @return Value if key is found otherwise null
+     */
+    public V find(K key) {
+        this.tableLock.readLock().lock();
+        try {
+            Partition partition = route(key);
+            partition.lock.lock();
+            try {
+                return partition.tree.find(key);
+            } finally {
+                partition.lock.unlock();
+            }
+        } finally {
+            this.tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts the key and value into its partition. Splits the partition if it grew too large.
+     *
+     * @param key   key for the value
+     * @param value value to insert
+     */
+    public void insert(K key, V value) {
+        if (key == null) return;
+        Partition partition;
+        int size;
+        this.tableLock.readLock().lock();
+        try {
+            partition = route(key);
+            partition.lock.lock();
+            try {
+                partition.tree.insert(key, value);
+                size = partition.tree.size();
+            } finally {
+                partition.lock.unlock();
+            }
+        } finally {
+            this.tableLock.readLock().unlock();
+        }
+        splitIfTooLarge(partition, size);
+    }
+
+    /**
+     * Inserts all the pairs. Pairs are grouped by partition and every partition is filled in parallel.
+     *
+     * @param pairs pairs to insert
+     */
+    public void insertAll(Collection<Pair<K, V>> pairs) {
+        List<Partition> touched = new ArrayList<>();
+        int[] sizes;
+        this.tableLock.readLock().lock();
+        try {
+            List<Partition> current = this.partitions;
+            List<List<Pair<K, V>>> groups = new ArrayList<>(current.size());
+            current.forEach(partition -> groups.add(new ArrayList<>()));
+            for (Pair<K, V> pair : pairs) {
+                if (pair.getKey() != null) groups.get(routeIndex(current, pair.getKey())).add(pair);
+            }
+            for (int i = 0; i < current.size(); i++) {
+                if (!groups.get(i).isEmpty()) touched.add(current.get(i));
+            }
+            groups.removeIf(List::isEmpty);
+            int[] touchedSizes = new int[touched.size()];
+            IntStream.range(0, touched.size()).parallel().forEach(i -> {
+                Partition partition = touched.get(i);
+                List<Pair<K, V>> group = groups.get(i);
+                partition.lock.lock();
+                try {
+                    group.forEach(pair -> partition.tree.insert(pair.getKey(), pair.getVal()));
+                    touchedSizes[i] = partition.tree.size();
+                } finally {
+                    partition.lock.unlock();
+                }
+            });
+            sizes = touchedSizes;
+        } finally {
+            this.tableLock.readLock().unlock();
+        }
+        for (int i = 0; i < touched.size(); i++) {
+            splitIfTooLarge(touched.get(i), sizes[i]);
+        }
+    }
+
+    /**
+     * Removes the value associated with the key.
+     *
+     * @param key key to look for
+     * @return True if key was removed otherwise false.
+     */
+    public boolean remove(K key) {
+        this.tableLock.readLock().lock();
+        try {
+            Partition partition = route(key);
+            partition.lock.lock();
+            try {
+                return partition.tree.remove(key);
+            } finally {
+                partition.lock.unlock();
+            }
+        } finally {
+            this.tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Modifies value of a key.
+     *
+     * @param key   key to modify
+     * @param value new value for the key
+     * @return True if modify was successful otherwise false.
+     */
+    public boolean modify(K key, V value) {
+        this.tableLock.readLock().lock();
+        try {
+            Partition partition = route(key);
+            partition.lock.lock();
+            try {
+                return partition.tree.modify(key, value);
+            } finally {
+                partition.lock.unlock();
+            }
+        } finally {
+            this.tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of pairs inside all the partitions.
+     */
+    public int size() {
+        this.tableLock.readLock().lock();
+        try {
+            int size = 0;
+            for (Partition partition : this.partitions) {
+                partition.lock.lock();
+                try {
+                    size += partition.tree.size();
+                } finally {
+                    partition.lock.unlock();
+                }
+            }
+            return size;
+        } finally {
+            this.tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the partitions one at a time, so operations on the other partitions keep running.
+     *
+     * @param targetFill fraction of the maximum degree every rebuilt node is filled to, inside (0, 1]
+     * @return estimated number of bytes reclaimed by all the partitions.
+     */
+    public long compact(double targetFill) {
+        this.tableLock.readLock().lock();
+        try {
+            long reclaimed = 0;
+            for (Partition partition : this.partitions) {
+                partition.lock.lock();
+                try {
+                    reclaimed += partition.tree.compact(targetFill).getBytesReclaimed();
+                } finally {
+                    partition.lock.unlock();
+                }
+            }
+            return reclaimed;
+        } finally {
+            this.tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks every partition tree and that the partitions hold only keys inside their own range.
+     *
+     * @throws IllegalStateException describing the first violated invariant.
+     */
+    public void verify() {
+        this.tableLock.readLock().lock();
+        try {
+            List<Partition> current = this.partitions;
+            for (int i = 0; i < current.size(); i++) {
+                Partition partition = current.get(i);
+                K upperBound = i + 1 < current.size() ? current.get(i + 1).lowerBound : null;
+                if (i > 0 && upperBound != null && partition.lowerBound.compareTo(upperBound) >= 0) {
+                    throw new IllegalStateException("Partitions out of order: " + partition.lowerBound + " before "
+                            + upperBound);
+                }
+                partition.lock.lock();
+                try {
+                    partition.tree.verify();
+                    for (BPlusTree<K, V>.LeafNode leaf = partition.tree.getLeftLeafNode(); leaf != null;
+                         leaf = leaf.right) {
+                        for (int j = 0; j < leaf.degree; j++) {
+                            K key = leaf.keys.get(j);
+                            if ((partition.lowerBound != null && key.compareTo(partition.lowerBound) < 0)
+                                    || (upperBound != null && key.compareTo(upperBound) >= 0)) {
+                                throw new IllegalStateException("Key " + key + " outside partition ["
+                                        + partition.lowerBound + ", " + upperBound + ")");
+                            }
+                        }
+                    }
+                } finally {
+                    partition.lock.unlock();
+                }
+            }
+        } finally {
+            this.tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the pairs whose key is inside [from, to) in key order. Partitions cover disjoint ranges, so their scans
+     * are merged by concatenation. Every partition is copied under its own lock when the stream reaches it, and the
+     * next partition is looked up by key so that partitions split during the scan are still covered.
+     *
+     * @param from lowest key to return (inclusive), null for no lower bound.
+     * @param to   key to stop at (exclusive), null for no upper bound.
+     * @return stream of pairs inside the range.
+     */
+    public Stream<Pair<K, V>> entries(K from, K to) {
+        return Stream.iterate(scanPartition(from, to), chunk -> chunk != null,
+                        chunk -> chunk.next == null ? null : scanPartition(chunk.next, to))
+                .flatMap(chunk -> chunk.pairs.stream());
+    }
+
+    /**
+     * Copies the pairs inside [from, to) of the partition responsible for from.
+     *
+     * @param from lowest key to return (inclusive), null for the first partition.
+     * @param to   key to stop at (exclusive), null for no upper bound.
+     * @return copied pairs and the lower bound of the next partition to scan.
+     */
+    private ScanChunk scanPartition(K from, K to) {
+        this.tableLock.readLock().lock();
+        try {
+            List<Partition> current = this.partitions;
+            int index = from == null ? 0 : routeIndex(current, from);
+            Partition partition = current.get(index);
+            K next = index + 1 < current.size() ? current.get(index + 1).lowerBound : null;
+            if (to != null && next != null && to.compareTo(next) <= 0) {
+                // Range ends inside this partition.
+                next = null;
+            }
+            partition.lock.lock();
+            try {
+                K stop = next != null ? next : to;
+                return new ScanChunk(partition.tree.entries(from, stop).collect(Collectors.toList()), next);
+            } finally {
+                partition.lock.unlock();
+            }
+        } finally {
+            this.tableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits the partition into ceil(size / maxPartitionSize) partitions of about the same size if it holds more than
+     * maxPartitionSize pairs, so a single bulk insert cannot leave it oversized. Copies of one key always stay inside
+     * the same partition, so they can keep a partition over the limit.
+     *
+     * @param partition partition to check
+     * @param size      number of pairs of the partition, read under its lock by the caller.
+     */
+    private void splitIfTooLarge(Partition partition, int size) {
+        if (size <= this.maxPartitionSize) return;
+        this.tableLock.writeLock().lock();
+        try {
+            // The write lock excludes every other operation, the partition can be read and changed without its lock.
+            List<Partition> current = this.partitions;
+            int index = current.indexOf(partition);
+            size = partition.tree.size();
+            if (index < 0 || size <= this.maxPartitionSize) {
+                // Already split by another thread.
+                return;
+            }
+
+            // Pick the lower bounds of the new partitions at even ranks, skipping bounds inside a run of copies.
+            int pieces = (size + this.maxPartitionSize - 1) / this.maxPartitionSize;
+            List<K> bounds = new ArrayList<>(pieces - 1);
+            K previous = partition.tree.select(0).getKey();
+            for (int i = 1; i < pieces; i++) {
+                K bound = partition.tree.select((int) ((long) i * size / pieces)).getKey();
+                if (bound.compareTo(previous) > 0) {
+                    bounds.add(bound);
+                    previous = bound;
+                }
+            }
+            if (bounds.isEmpty()) {
+                // Partition only holds copies of one key.
+                return;
+            }
+
+            // Move every range above the first bound into its own partition.
+            List<Partition> updated = new ArrayList<>(current);
+            for (int i = 0; i < bounds.size(); i++) {
+                K to = i + 1 < bounds.size() ? bounds.get(i + 1) : null;
+                BPlusTree<K, V> tree = newTree();
+                partition.tree.entries(bounds.get(i), to).forEach(pair -> tree.insert(pair.getKey(), pair.getVal()));
+                updated.add(index + 1 + i, new Partition(bounds.get(i), tree));
+                partitionSplits++;
+            }
+            partition.tree.removeRange(bounds.get(0), null);
+            this.partitions = updated;
+        } finally {
+            this.tableLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param key key to route
+     * @return partition responsible for the key.
+     */
+    private Partition route(K key) {
+        List<Partition> current = this.partitions;
+        return current.get(routeIndex(current, key));
+    }
+
+    /**
+     * Binary searches the last partition whose lower bound is not larger than key.
+     *
+     * @param partitions partitions ordered by their lower bound
+     * @param key        key to route
+     * @return index of the partition responsible for the key.
+     */
+    private int routeIndex(List<Partition> partitions, K key) {
+        int low = 0;
+        int high = partitions.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (partitions.get(middle).lowerBound.compareTo(key) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return new empty BPlusTree for a partition.
+     */
+    private BPlusTree<K, V> newTree() {
+        return new BPlusTree<>(internalNodeMinDegree, internalNodeMaxDegree, minNumberOfValues, maxNumberOfValues);
+    }
+
+    /**
+     * Pairs copied from one partition during a scan.
+     */
+    private class ScanChunk {
+        // Copied pairs.
+        private final List<Pair<K, V>> pairs;
+        // Lower bound of the next partition to scan. Null if the scan is done.
+        private final K next;
+
+        private ScanChunk(List<Pair<K, V>> pairs, K next) {
+            this.pairs = pairs;
+            this.next = next;
+        }
+    }
+
+    /**
+     * A range of the key space backed by its own BPlusTree and lock.
+     */
+    private class Partition {
+        // Lowest key of the partition (inclusive). Null for the first partition.
+        private final K lowerBound;
+        // Tree holding the pairs of the partition.
+        private final BPlusTree<K, V> tree;
+        // Lock guarding the tree.
+        private final ReentrantLock lock;
+
+        private Partition(K lowerBound, BPlusTree<K, V> tree) {
+            this.lowerBound = lowerBound;
+            this.tree = tree;
+            this.lock = new ReentrantLock();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+public class SecondaryIndex<K extends Comparable<K>, V, S extends Comparable<S>> {
+    // Tree whose values are indexed.
+    private final BPlusTree<K, V> primary;
+    // Extracts the indexed attribute from a value. Values whose attribute is null are not indexed.
+    private final Function<V, S> extractor;
+    // Auxiliary tree keyed by (attribute, primary key) holding the primary value.
+    private final BPlusTree<IndexKey<S, K>, V> index;
+
+    /**
+     * Create a new SecondaryIndex. Use BPlusTree.addSecondaryIndex to create and register an index.
+     *
+     * @param primary   tree whose values are indexed
+     * @param extractor extracts the indexed attribute from a value
+     * @param index     empty auxiliary tree
+     */
+    SecondaryIndex(BPlusTree<K, V> primary, Function<V, S> extractor, BPlusTree<IndexKey<S, K>, V> index) {
+        this.primary = primary;
+        this.extractor = extractor;
+        this.index = index;
+    }
+
+    /**
+     * Finds all the pairs of the primary tree whose attribute equals value.
+     *
+     * @param value attribute to look for
+     * @return pairs of the primary tree in primary key order.
+     */
+    public List<Pair<K, V>> find(S value) {
+        return findRange(value, value, true);
+    }
+
+    /**
+     * Finds all the pairs of the primary tree whose attribute is inside [from, to).
+     *
+     * @param from lowest attribute to return (inclusive)
+     * @param to   attribute to stop at (exclusive)
+     * @return pairs of the primary tree in attribute order.
+     */
+    public List<Pair<K, V>> findRange(S from, S to) {
+        return findRange(from, to, false);
+    }
+
+    /**
+     * @return number of pairs inside the index.
+     */
+    public int size() {
+        this.primary.flushWriteBuffers();
+        return this.index.size();
+    }
+
+    /**
+     * Checks the auxiliary tree and that it holds exactly one entry per indexed pair of the primary tree.
+     *
+     * @throws IllegalStateException describing the first violated invariant.
+     */
+    void verify() {
+        this.index.verify();
+        int indexed = 0;
+        for (BPlusTree<K, V>.LeafNode leaf = this.primary.getLeftLeafNode(); leaf != null; leaf = leaf.right) {
+            for (int i = 0; i < leaf.degree; i++) {
+                V value = leaf.values.get(i);
+                if (value != null && this.extractor.apply(value) != null) indexed++;
+            }
+        }
+        if (indexed != this.index.size()) {
+            throw new IllegalStateException("Secondary index holds " + this.index.size() + " entries for " + indexed
+                    + " indexed pairs");
+        }
+    }
+
+    /**
+     * Finds all the pairs whose attribute is inside the range.
+     *
+     * @param from          lowest attribute to return (inclusive)
+     * @param to            highest attribute to return
+     * @param includeTo     True if to is inclusive otherwise false
+     * @return pairs of the primary tree in attribute order.
+     */
+    private List<Pair<K, V>> findRange(S from, S to, boolean includeTo) {
+        this.primary.flushWriteBuffers();
+        IndexKey<S, K> lower = new IndexKey<>(from, null, -1);
+        IndexKey<S, K> upper = new IndexKey<>(to, null, includeTo ? 1 : -1);
+        return this.index.entries(lower, upper)
+                .map(pair -> new Pair<>(pair.getKey().primaryKey, pair.getVal()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param value primary value
+     * @return indexed attribute of the value, null if the value is not indexed.
+     */
+    S attribute(V value) {
+        return value == null ? null : this.extractor.apply(value);
+    }
+
+    /**
+     * Adds a pair inserted into the primary tree.
+     *
+     * @param key   primary key
+     * @param value primary value
+     */
+    void add(K key, V value) {
+        S attribute = attribute(value);
+        if (attribute != null) {
+            this.index.insert(new IndexKey<>(attribute, key, 0), value);
+        }
+    }
+
+    /**
+     * Removes a pair removed from the primary tree.
+     *
+     * @param key   primary key
+     * @param value primary value
+     */
+    void remove(K key, V value) {
+        S attribute = attribute(value);
+        if (attribute != null) {
+            this.index.remove(new IndexKey<>(attribute, key, 0));
+        }
+    }
+
+    /**
+     * Key of the auxiliary tree, ordered by attribute then by primary key.
+     */
+    static class IndexKey<S extends Comparable<S>, K extends Comparable<K>> implements Comparable<IndexKey<S, K>> {
+        private final S attribute;
+        private final K primaryKey;
+        // -1 sorts before every primary key of the attribute, 1 after, 0 for a real entry.
+        private final int bound;
+
+        IndexKey(S attribute, K primaryKey, int bound) {
+            this.attribute = attribute;
+            this.primaryKey = primaryKey;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(IndexKey<S, K> other) {
+            int cmp = this.attribute.compareTo(other.attribute);
+            if (cmp != 0) return cmp;
+            if (this.bound != 0 || other.bound != 0) return Integer.compare(this.bound, other.bound);
+            return this.primaryKey.compareTo(other.primaryKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof IndexKey)) return false;
+            IndexKey<?, ?> other = (IndexKey<?, ?>) o;
+            return bound == other.bound
+                    && attribute.equals(other.attribute)
+                    && Objects.equals(primaryKey, other.primaryKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(attribute, primaryKey, bound);
+        }
+
+        @Override
+        public String toString() {
+            return attribute + "/" + primaryKey;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client of a TreeServer. The get, put, delete and scan calls wait for their response. The send calls only buffer a
+ * request, so many requests can be pipelined before their responses are read in the same order with receive.
+ */
+public class TreeClient implements AutoCloseable {
+    // Connection to the server.
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    // Opcodes of the sent requests whose response was not read yet, oldest first.
+    private final ArrayDeque<Byte> pending;
+
+    /**
+     * Connects to a TreeServer.
+     *
+     * @param host host of the server
+     * @param port port of the server
+     */
+    public TreeClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+        this.pending = new ArrayDeque<>();
+    }
+
+    /**
+     * Finds the key.
+     *
+     * @param key key to look for
+     * @return Value if key is found otherwise null
+     */
+    public String get(String key) throws IOException {
+        sendGet(key);
+        flush();
+        return receive().getValue();
+    }
+
+    /**
+     * Inserts the key and value.
+     *
+     * @param key   key for the value
+     * @param value value to insert
+     */
+    public void put(String key, String value) throws IOException {
+        sendPut(key, value);
+        flush();
+        receive();
+    }
+
+    /**
+     * Removes the value associated with the key.
+     *
+     * @param key key to look for
+     * @return True if key was removed otherwise false.
+     */
+    public boolean delete(String key) throws IOException {
+        sendDelete(key);
+        flush();
+        return receive().isFound();
+    }
+
+    /**
+     * Returns the first limit pairs from from (inclusive) in key order.
+     *
+     * @param from  lowest key to return
+     * @param limit maximum number of pairs to return
+     * @return pairs in key order.
+     */
+    public List<Pair<String, String>> scan(String from, int limit) throws IOException {
+        sendScan(from, limit);
+        flush();
+        return receive().getPairs();
+    }
+
+    /**
+     * Buffers a GET request.
+     *
+     * @param key key to look for
+     */
+    public void sendGet(String key) throws IOException {
+        this.out.writeByte(TreeServer.GET);
+        this.pending.add(TreeServer.GET);
+        TreeServer.writeString(this.out, key);
+    }
+
+    /**
+     * Buffers a PUT request.
+     *
+     * @param key   key for the value
+     * @param value value to insert
+     */
+    public void sendPut(String key, String value) throws IOException {
+        this.out.writeByte(TreeServer.PUT);
+        this.pending.add(TreeServer.PUT);
+        TreeServer.writeString(this.out, key);
+        TreeServer.writeString(this.out, value);
+    }
+
+    /**
+     * Buffers a DELETE request.
+     *
+     * @param key key to remove
+     */
+    public void sendDelete(String key) throws IOException {
+        this.out.writeByte(TreeServer.DELETE);
+        this.pending.add(TreeServer.DELETE);
+        TreeServer.writeString(this.out, key);
+    }
+
+    /**
+     * Buffers a SCAN request.
+     *
+     * @param from  lowest key to return
+     * @param limit maximum number of pairs to return
+     */
+    public void sendScan(String from, int limit) throws IOException {
+        this.out.writeByte(TreeServer.SCAN);
+        this.pending.add(TreeServer.SCAN);
+        TreeServer.writeString(this.out, from);
+        this.out.writeInt(limit);
+    }
+
+    /**
+     * Sends the buffered requests.
+     */
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    /**
+     * Reads the response of the oldest request whose response was not read yet.
+     *
+     * @return the response.
+     */
+    public Response receive() throws IOException {
+        Byte opcode = this.pending.poll();
+        if (opcode == null) {
+            throw new IllegalStateException("No request is waiting for a response");
+        }
+        byte status = this.in.readByte();
+        if (status == TreeServer.ERROR) {
+            throw new IOException("Tree server error: " + TreeServer.readString(this.in));
+        }
+        if (status != TreeServer.OK) {
+            return new Response(false, null, null);
+        }
+        switch (opcode.byteValue()) {
+            case TreeServer.GET:
+                return new Response(true, TreeServer.readString(this.in), null);
+            case TreeServer.SCAN:
+                int count = this.in.readInt();
+                List<Pair<String, String>> pairs = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String key = TreeServer.readString(this.in);
+                    pairs.add(new Pair<>(key, TreeServer.readString(this.in)));
+                }
+                return new Response(true, null, pairs);
+            default:
+                return new Response(true, null, null);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    /**
+     * Response of a request.
+     */
+    public static class Response {
+        // False if the key of a GET or DELETE was not found.
+        private final boolean found;
+        // Value of a GET, otherwise null.
+        private final String value;
+        // Pairs of a SCAN, otherwise null.
+        private final List<Pair<String, String>> pairs;
+
+        private Response(boolean found, String value, List<Pair<String, String>> pairs) {
+            this.found = found;
+            this.value = value;
+            this.pairs = pairs;
+        }
+
+        public boolean isFound() {
+            return found;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public List<Pair<String, String>> getPairs() {
+            return pairs;
+        }
+    }
+}
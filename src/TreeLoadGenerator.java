@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load generator for a TreeServer. Opens a number of connections, each keeping up to a pipeline depth of requests in
+ * flight, and reports the throughput and latency percentiles of all the requests.
+ *
+ * <p>Usage: TreeLoadGenerator [host] [port] [connections] [requests per connection] [pipeline depth] [read percent].
+ * Port 0 starts an embedded server on localhost loaded with the default input file. Requests draw their keys from the
+ * default input file, which a server started by Main also loads, so GETs mostly hit. Without the file the keys are
+ * synthetic and the server is expected to start empty.
+ */
+public class TreeLoadGenerator {
+    // Number of synthetic keys requests are spread over when the input file is missing.
+    private static final int KEY_SPACE = 100_000;
+    // Number of pairs requested by a SCAN.
+    private static final int SCAN_LIMIT = 10;
+
+    // Server to load.
+    private final String host;
+    private final int port;
+    // Number of concurrent connections.
+    private final int connections;
+    // Number of requests sent by every connection.
+    private final int requestsPerConnection;
+    // Maximum number of requests in flight on a connection.
+    private final int pipelineDepth;
+    // Percentage of GET requests, the rest are mostly PUTs with some DELETEs and SCANs.
+    private final int readPercent;
+    // Keys the requests are spread over.
+    private final List<String> keys;
+
+    /**
+     * Create a new TreeLoadGenerator.
+     *
+     * @param host                  host of the server
+     * @param port                  port of the server
+     * @param connections           number of concurrent connections
+     * @param requestsPerConnection number of requests sent by every connection
+     * @param pipelineDepth         maximum number of requests in flight on a connection
+     * @param readPercent           percentage of GET requests
+     * @param keys                  keys the requests are spread over, not empty
+     */
+    public TreeLoadGenerator(String host, int port, int connections, int requestsPerConnection, int pipelineDepth,
+                             int readPercent, List<String> keys) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.requestsPerConnection = requestsPerConnection;
+        this.pipelineDepth = pipelineDepth;
+        this.readPercent = readPercent;
+        this.keys = keys;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : TreeServer.DEFAULT_PORT;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 100_000;
+        int depth = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+        int readPercent = args.length > 5 ? Integer.parseInt(args[5]) : 90;
+
+        boolean inputFile = Files.exists(Paths.get(Utils.getAbsoluteFilePath(Utils.INPUT_FILE)));
+        List<String> keys = inputFile ? loadKeys() : syntheticKeys();
+        TreeServer server = null;
+        if (port == 0) {
+            BPlusTree<String, String> tree = new BPlusTree<>(2, 3, 8, 16);
+            if (inputFile) {
+                Utils.loadBPlusTreeFromFile(Utils.INPUT_FILE, tree);
+            }
+            server = new TreeServer(tree, 0);
+            server.start();
+            host = "localhost";
+            port = server.getPort();
+        }
+        try {
+            System.out.println(new TreeLoadGenerator(host, port, connections, requests, depth, readPercent, keys).run());
+        } finally {
+            if (server != null) server.close();
+        }
+    }
+
+    /**
+     * @return distinct keys of the default input file.
+     */
+    private static List<String> loadKeys() throws IOException {
+        try (Stream<String> lines = Files.lines(Paths.get(Utils.getAbsoluteFilePath(Utils.INPUT_FILE)))) {
+            return lines.map(line -> Utils.parseLine(line).getKey()).distinct().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return KEY_SPACE synthetic keys.
+     */
+    private static List<String> syntheticKeys() {
+        List<String> keys = new ArrayList<>(KEY_SPACE);
+        for (int i = 0; i < KEY_SPACE; i++) {
+            keys.add("key" + i);
+        }
+        return keys;
+    }
+
+    /**
+     * Runs the load and waits for every response.
+     *
+     * @return the throughput and latency percentiles.
+     */
+    public Result run() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(this.connections);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < this.connections; i++) {
+                long seed = i;
+                futures.add(pool.submit(() -> runConnection(new Random(seed))));
+            }
+            long[] latencies = new long[this.connections * this.requestsPerConnection];
+            int offset = 0;
+            for (Future<long[]> future : futures) {
+                long[] connectionLatencies = future.get();
+                System.arraycopy(connectionLatencies, 0, latencies, offset, connectionLatencies.length);
+                offset += connectionLatencies.length;
+            }
+            long elapsed = System.nanoTime() - start;
+            Arrays.sort(latencies);
+            return new Result(latencies, elapsed);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends the requests of one connection, keeping up to pipelineDepth of them in flight.
+     *
+     * @param random source of the keys and request types
+     * @return latency of every request in nanoseconds.
+     */
+    private long[] runConnection(Random random) throws IOException {
+        long[] latencies = new long[this.requestsPerConnection];
+        long[] sentAt = new long[this.pipelineDepth];
+        try (TreeClient client = new TreeClient(this.host, this.port)) {
+            int sent = 0;
+            int received = 0;
+            while (received < this.requestsPerConnection) {
+                while (sent < this.requestsPerConnection && sent - received < this.pipelineDepth) {
+                    sentAt[sent % this.pipelineDepth] = System.nanoTime();
+                    sendRequest(client, random);
+                    sent++;
+                }
+                client.flush();
+                client.receive();
+                latencies[received] = System.nanoTime() - sentAt[received % this.pipelineDepth];
+                received++;
+            }
+        }
+        return latencies;
+    }
+
+    /**
+     * Sends a random request.
+     *
+     * @param client client to send with
+     * @param random source of the key and request type
+     */
+    private void sendRequest(TreeClient client, Random random) throws IOException {
+        String key = this.keys.get(random.nextInt(this.keys.size()));
+        if (random.nextInt(100) < this.readPercent) {
+            client.sendGet(key);
+            return;
+        }
+        int type = random.nextInt(10);
+        if (type == 0) {
+            client.sendDelete(key);
+        } else if (type == 1) {
+            client.sendScan(key, SCAN_LIMIT);
+        } else {
+            client.sendPut(key, "value" + random.nextInt());
+        }
+    }
+
+    /**
+     * Throughput and latency percentiles of a run.
+     */
+    public static class Result {
+        // Sorted latencies of all the requests in nanoseconds.
+        private final long[] latencies;
+        // Duration of the run in nanoseconds.
+        private final long elapsed;
+
+        private Result(long[] latencies, long elapsed) {
+            this.latencies = latencies;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return requests per second.
+         */
+        public double getThroughput() {
+            return latencies.length * 1e9 / elapsed;
+        }
+
+        /**
+         * @param percentile percentile between 0 and 100
+         * @return latency of the percentile in microseconds.
+         */
+        public double getLatency(double percentile) {
+            if (latencies.length == 0) return 0;
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e3;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests in %.2f s: %.0f requests/s, latency us p50 %.1f p90 %.1f p99 %.1f "
+                            + "p99.9 %.1f max %.1f",
+                    latencies.length, elapsed / 1e9, getThroughput(), getLatency(50), getLatency(90),
+                    getLatency(99), getLatency(99.9), getLatency(100));
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class TreeMerge {
+
+    /**
+     * Kind of difference between two trees.
+     */
+    public enum ChangeType {
+        // Key is only inside the newer tree.
+        ADDED,
+        // Key is only inside the older tree.
+        REMOVED,
+        // Key is inside both trees with different values.
+        CHANGED
+    }
+
+    /**
+     * A difference between two trees for a single key.
+     */
+    public static class Change<K, V> {
+        private final ChangeType type;
+        private final K key;
+        private final V oldVal;
+        private final V newVal;
+
+        public Change(ChangeType type, K key, V oldVal, V newVal) {
+            this.type = type;
+            this.key = key;
+            this.oldVal = oldVal;
+            this.newVal = newVal;
+        }
+
+        public ChangeType getType() {
+            return type;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public V getOldVal() {
+            return oldVal;
+        }
+
+        public V getNewVal() {
+            return newVal;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + key + " : " + oldVal + " -> " + newVal;
+        }
+    }
+
+    /**
+     * Returns the pairs of both trees in key order. If a key is inside both trees the pair of the first tree is used.
+     *
+     * @param first  first tree
+     * @param second second tree
+     * @return stream of the union.
+     */
+    public static <K extends Comparable<K>, V> Stream<Pair<K, V>> union(BPlusTree<K, V> first, BPlusTree<K, V> second) {
+        BPlusTree<K, V>.Cursor a = first.cursor();
+        BPlusTree<K, V>.Cursor b = second.cursor();
+        return stream(new MergeIterator<Pair<K, V>>() {
+            @Override
+            protected Pair<K, V> computeNext() {
+                if (!a.isValid() && !b.isValid()) return null;
+                int cmp = !a.isValid() ? 1 : !b.isValid() ? -1 : a.getKey().compareTo(b.getKey());
+                Pair<K, V> pair;
+                if (cmp <= 0) {
+                    pair = new Pair<>(a.getKey(), a.getVal());
+                    if (cmp == 0) b.next();
+                    a.next();
+                } else {
+                    pair = new Pair<>(b.getKey(), b.getVal());
+                    b.next();
+                }
+                return pair;
+            }
+        });
+    }
+
+    /**
+     * Returns the pairs of the first tree whose key is also inside the second tree. Both cursors seek past gaps
+     * instead of stepping through them.
+     *
+     * @param first  first tree
+     * @param second second tree
+     * @return stream of the intersection.
+     */
+    public static <K extends Comparable<K>, V> Stream<Pair<K, V>> intersection(BPlusTree<K, V> first,
+                                                                               BPlusTree<K, V> second) {
+        BPlusTree<K, V>.Cursor a = first.cursor();
+        BPlusTree<K, V>.Cursor b = second.cursor();
+        return stream(new MergeIterator<Pair<K, V>>() {
+            @Override
+            protected Pair<K, V> computeNext() {
+                while (a.isValid() && b.isValid()) {
+                    int cmp = a.getKey().compareTo(b.getKey());
+                    if (cmp < 0) {
+                        a.seek(b.getKey());
+                    } else if (cmp > 0) {
+                        b.seek(a.getKey());
+                    } else {
+                        Pair<K, V> pair = new Pair<>(a.getKey(), a.getVal());
+                        a.next();
+                        b.next();
+                        return pair;
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the pairs of the first tree whose key is not inside the second tree.
+     *
+     * @param first  first tree
+     * @param second second tree
+     * @return stream of the difference.
+     */
+    public static <K extends Comparable<K>, V> Stream<Pair<K, V>> difference(BPlusTree<K, V> first,
+                                                                             BPlusTree<K, V> second) {
+        BPlusTree<K, V>.Cursor a = first.cursor();
+        BPlusTree<K, V>.Cursor b = second.cursor();
+        return stream(new MergeIterator<Pair<K, V>>() {
+            @Override
+            protected Pair<K, V> computeNext() {
+                while (a.isValid()) {
+                    b.seek(a.getKey());
+                    boolean found = b.isValid() && b.getKey().compareTo(a.getKey()) == 0;
+                    Pair<K, V> pair = found ? null : new Pair<>(a.getKey(), a.getVal());
+                    a.next();
+                    if (pair != null) return pair;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns the changes needed to turn the older tree into the newer tree in key order, in a single pass over
+     * both leaf chains.
+     *
+     * @param older older tree, e.g. yesterday's catalog
+     * @param newer newer tree, e.g. today's catalog
+     * @return stream of the changes.
+     */
+    public static <K extends Comparable<K>, V> Stream<Change<K, V>> diff(BPlusTree<K, V> older,
+                                                                        BPlusTree<K, V> newer) {
+        BPlusTree<K, V>.Cursor a = older.cursor();
+        BPlusTree<K, V>.Cursor b = newer.cursor();
+        return stream(new MergeIterator<Change<K, V>>() {
+            @Override
+            protected Change<K, V> computeNext() {
+                while (a.isValid() || b.isValid()) {
+                    int cmp = !a.isValid() ? 1 : !b.isValid() ? -1 : a.getKey().compareTo(b.getKey());
+                    if (cmp < 0) {
+                        Change<K, V> change = new Change<>(ChangeType.REMOVED, a.getKey(), a.getVal(), null);
+                        a.next();
+                        return change;
+                    }
+                    if (cmp > 0) {
+                        Change<K, V> change = new Change<>(ChangeType.ADDED, b.getKey(), null, b.getVal());
+                        b.next();
+                        return change;
+                    }
+                    Change<K, V> change = Objects.equals(a.getVal(), b.getVal())
+                            ? null : new Change<>(ChangeType.CHANGED, a.getKey(), a.getVal(), b.getVal());
+                    a.next();
+                    b.next();
+                    if (change != null) return change;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param iterator iterator to wrap
+     * @return ordered sequential stream over the iterator.
+     */
+    private static <T> Stream<T> stream(Iterator<T> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Iterator computing its elements lazily, null marks the end.
+     */
+    private abstract static class MergeIterator<T> implements Iterator<T> {
+        private T next;
+        private boolean computed;
+
+        /**
+         * @return next element or null if there is none.
+         */
+        protected abstract T computeNext();
+
+        @Override
+        public boolean hasNext() {
+            if (!computed) {
+                next = computeNext();
+                computed = true;
+            }
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            computed = false;
+            return next;
+        }
+    }
+}
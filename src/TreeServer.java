@@ -0,0 +1,310 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless server sharing one tree between processes over a binary protocol.
+ *
+ * <p>Every request is an opcode byte followed by its arguments, strings are an int byte length followed by the UTF-8
+ * bytes:
+ * <ul>
+ * <li>GET key: OK value, or NOT_FOUND.</li>
+ * <li>PUT key value: OK. Replaces the value if the key is already present.</li>
+ * <li>DELETE key: OK, or NOT_FOUND.</li>
+ * <li>SCAN from limit: OK, an int count and count pairs of key and value, the first limit pairs from from
+ * (inclusive) in key order.</li>
+ * </ul>
+ * Clients may pipeline any number of requests. Responses are sent in request order and the responses of requests that
+ * arrived together are flushed in a single write. A malformed request gets an ERROR response with a message and the
+ * connection is closed.
+ */
+public class TreeServer implements AutoCloseable {
+    // Logger for connection failures.
+    private static final Logger LOGGER = Logger.getLogger(TreeServer.class.getName());
+    // Port used when none is given.
+    public static final int DEFAULT_PORT = 7070;
+    // Longest string accepted inside a request, in bytes.
+    private static final int MAX_STRING_BYTES = 1 << 24;
+
+    // Request opcodes.
+    static final byte GET = 1;
+    static final byte PUT = 2;
+    static final byte DELETE = 3;
+    static final byte SCAN = 4;
+
+    // Response statuses.
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte ERROR = 2;
+
+    // Tree shared by all the connections.
+    private final BPlusTree<String, String> tree;
+    // Guards the tree, which is not thread safe even for lookups.
+    private final ReentrantLock lock;
+    // Socket accepting the connections.
+    private final ServerSocket serverSocket;
+    // Runs one task per connection.
+    private final ExecutorService connections;
+    // Sockets of the open connections, closed by close.
+    private final Set<Socket> sockets;
+    // Number of requests handled.
+    private final AtomicLong requests;
+
+    /**
+     * Create a new TreeServer listening on port. Connections are only accepted once serve or start is called.
+     *
+     * @param tree tree to share
+     * @param port port to listen on, 0 for any free port
+     */
+    public TreeServer(BPlusTree<String, String> tree, int port) throws IOException {
+        this.tree = tree;
+        this.lock = new ReentrantLock();
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(port));
+        this.connections = AsyncTreeIO.newExecutor("tree-server");
+        this.sockets = ConcurrentHashMap.newKeySet();
+        this.requests = new AtomicLong();
+    }
+
+    /**
+     * @return port the server listens on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return number of requests handled.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Accepts connections on the calling thread until the server is closed.
+     */
+    public void serve() throws IOException {
+        while (!this.serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (SocketException e) {
+                // Closed by close.
+                return;
+            }
+            this.sockets.add(socket);
+            this.connections.execute(() -> handle(socket));
+        }
+    }
+
+    /**
+     * Accepts connections on a background daemon thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(() -> {
+            try {
+                serve();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Tree server stopped accepting connections", e);
+            }
+        }, "tree-server-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.serverSocket.close();
+        for (Socket socket : this.sockets) {
+            socket.close();
+        }
+        this.connections.shutdownNow();
+    }
+
+    /**
+     * Serves the requests of a connection until the client closes it.
+     *
+     * @param socket socket of the connection
+     */
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            int opcode;
+            while ((opcode = in.read()) >= 0) {
+                boolean open;
+                try {
+                    open = handleRequest((byte) opcode, in, out);
+                } catch (MalformedRequestException e) {
+                    open = error(out, e.getMessage());
+                }
+                if (!open) break;
+                // Flush once no pipelined request is waiting, batching their responses.
+                if (in.available() == 0) out.flush();
+            }
+            out.flush();
+        } catch (EOFException | SocketException e) {
+            // Client went away in the middle of a request.
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Connection failed", e);
+        } finally {
+            this.sockets.remove(socket);
+        }
+    }
+
+    /**
+     * Reads the arguments of a request, applies it to the tree and writes the response.
+     *
+     * @param opcode opcode of the request
+     * @param in     stream to read the arguments from
+     * @param out    stream to write the response to
+     * @return True if the connection can serve further requests otherwise false.
+     */
+    private boolean handleRequest(byte opcode, DataInputStream in, DataOutputStream out) throws IOException {
+        this.requests.incrementAndGet();
+        switch (opcode) {
+            case GET: {
+                String key = readString(in);
+                String value;
+                this.lock.lock();
+                try {
+                    value = this.tree.find(key);
+                } finally {
+                    this.lock.unlock();
+                }
+                if (value == null) {
+                    out.writeByte(NOT_FOUND);
+                } else {
+                    out.writeByte(OK);
+                    writeString(out, value);
+                }
+                return true;
+            }
+            case PUT: {
+                String key = readString(in);
+                String value = readString(in);
+                this.lock.lock();
+                try {
+                    // Upsert, the tree itself keeps duplicate keys.
+                    if (!this.tree.modify(key, value)) {
+                        this.tree.insert(key, value);
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+                out.writeByte(OK);
+                return true;
+            }
+            case DELETE: {
+                String key = readString(in);
+                boolean removed;
+                this.lock.lock();
+                try {
+                    removed = this.tree.remove(key);
+                } finally {
+                    this.lock.unlock();
+                }
+                out.writeByte(removed ? OK : NOT_FOUND);
+                return true;
+            }
+            case SCAN: {
+                String from = readString(in);
+                int limit = in.readInt();
+                if (limit < 0) {
+                    throw new MalformedRequestException("Negative scan limit: " + limit);
+                }
+                List<String> pairs = new ArrayList<>();
+                this.lock.lock();
+                try {
+                    if (limit > 0) {
+                        this.tree.forEach(from, null, (key, value) -> {
+                            pairs.add(key);
+                            pairs.add(value);
+                            return pairs.size() < 2 * limit;
+                        });
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+                out.writeByte(OK);
+                out.writeInt(pairs.size() / 2);
+                for (String string : pairs) {
+                    writeString(out, string);
+                }
+                return true;
+            }
+            default:
+                throw new MalformedRequestException("Unknown opcode: " + opcode);
+        }
+    }
+
+    /**
+     * Writes an ERROR response.
+     *
+     * @param out     stream to write the response to
+     * @param message description of the error
+     * @return false, the connection is closed after an error.
+     */
+    private static boolean error(DataOutputStream out, String message) throws IOException {
+        out.writeByte(ERROR);
+        writeString(out, message);
+        return false;
+    }
+
+    /**
+     * Reads a string written by writeString.
+     *
+     * @param in stream to read from
+     * @return the string.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new MalformedRequestException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a string as its UTF-8 byte length followed by the bytes.
+     *
+     * @param out   stream to write to
+     * @param value string to write
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Thrown when a request cannot be parsed. The connection answers it with an ERROR response and is closed.
+     */
+    static class MalformedRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedRequestException(String message) {
+            super(message);
+        }
+    }
+}
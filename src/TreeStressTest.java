@@ -0,0 +1,400 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Randomized differential stress test of the trees. Runs random operations against a BPlusTree and a TreeMap holding
+ * the same pairs, compares every result and calls verify regularly, so changes to the split, remove, buffering or
+ * compaction logic show up as the first operation that diverges. Trees use random degrees and random optional
+ * features. Keys are unique since a TreeMap holds no duplicates, a separate run counts the copies of a few heavily
+ * duplicated keys instead.
+ *
+ * <p>The multi-threaded mode shares a PartitionedBPlusTree between threads and compares it with a
+ * ConcurrentSkipListMap. Every thread owns the keys equal to its index modulo the number of threads, so the results
+ * of its own keys stay predictable while all the threads hit the same partitions.
+ *
+ * <p>Usage: TreeStressTest [seed] [operations per tree] [threads]. Threads 0 only runs the single threaded mode.
+ * Exits with an exception at the first divergence, printing the seed to reproduce it.
+ */
+public class TreeStressTest {
+    // Number of distinct keys, small enough for keys to be removed and inserted again many times.
+    private static final int KEY_SPACE = 4096;
+    // Number of randomly configured trees of the single threaded mode.
+    private static final int TREES = 24;
+    // Number of operations between two calls to verify.
+    private static final int VERIFY_INTERVAL = 257;
+    // Number of distinct keys of the duplicated keys run, small enough for copies to span several leaf nodes.
+    private static final int DUPLICATED_KEY_SPACE = 8;
+    // Largest number of pairs a partition holds before it is split in the multi-threaded mode.
+    private static final int MAX_PARTITION_SIZE = 512;
+
+    // Seed of all the random choices.
+    private final long seed;
+    // Number of operations applied to every tree.
+    private final int operations;
+
+    /**
+     * Create a new TreeStressTest.
+     *
+     * @param seed       seed of all the random choices
+     * @param operations number of operations applied to every tree
+     */
+    public TreeStressTest(long seed, int operations) {
+        this.seed = seed;
+        this.operations = operations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Seed " + seed);
+        TreeStressTest test = new TreeStressTest(seed, operations);
+        test.runSingleThreaded();
+        System.out.println("Single threaded: " + TREES + " trees passed");
+        if (threads > 0) {
+            test.runMultiThreaded(threads);
+            System.out.println("Multi-threaded: " + threads + " threads passed");
+        }
+    }
+
+    /**
+     * Runs the operations against randomly configured trees, one after the other.
+     */
+    public void runSingleThreaded() {
+        Random random = new Random(this.seed);
+        for (int i = 0; i < TREES; i++) {
+            int internalNodeMaxDegree = 2 + random.nextInt(9);
+            int maxNumberOfValues = 2 + random.nextInt(15);
+            BPlusTree<Integer, String> tree = new BPlusTree<>(1, internalNodeMaxDegree, 1, maxNumberOfValues);
+            StringBuilder features = new StringBuilder();
+            if (random.nextBoolean()) {
+                tree.enableLeafFingerprints();
+                features.append(" fingerprints");
+            }
+            if (random.nextInt(3) == 0) {
+                tree.enableWriteBuffering(1 + random.nextInt(8));
+                features.append(" write buffering");
+            }
+            if (random.nextInt(3) == 0) {
+                tree.enableNegativeLookupFilter(0.05);
+                features.append(" negative lookup filter");
+            }
+            if (random.nextInt(3) == 0) {
+                tree.enableLookupCache(64);
+                features.append(" lookup cache");
+            }
+            if (random.nextInt(3) == 0) {
+                tree.enableValueBlocks(new Utf8Codec());
+                features.append(" value blocks");
+            }
+            SecondaryIndex<Integer, String, Integer> index = null;
+            if (random.nextInt(4) == 0) {
+                index = tree.addSecondaryIndex(TreeStressTest::attribute);
+                features.append(" secondary index");
+            }
+            String config = "tree " + i + " (" + internalNodeMaxDegree + ", " + maxNumberOfValues + features + ")";
+            try {
+                runTree(tree, index, new Random(random.nextLong()));
+            } catch (RuntimeException | AssertionError e) {
+                throw new AssertionError("Seed " + this.seed + ", " + config + ": " + e.getMessage(), e);
+            }
+        }
+        try {
+            runDuplicates(new Random(random.nextLong()));
+        } catch (RuntimeException | AssertionError e) {
+            throw new AssertionError("Seed " + this.seed + ", duplicated keys: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Inserts and removes copies of a few keys, comparing the number of copies of every key with a TreeMap. Copies of
+     * a key span several leaf nodes and emptied leaf nodes keep their separators, so every copy has to stay
+     * reachable by find and remove.
+     *
+     * @param random source of the operations
+     */
+    private void runDuplicates(Random random) {
+        BPlusTree<Integer, String> tree = new BPlusTree<>(1, 2 + random.nextInt(4), 1, 2 + random.nextInt(4));
+        if (random.nextBoolean()) {
+            tree.enableWriteBuffering(1 + random.nextInt(4));
+        }
+        TreeMap<Integer, Integer> copies = new TreeMap<>();
+        int size = 0;
+        for (int op = 0; op < this.operations; op++) {
+            int key = random.nextInt(DUPLICATED_KEY_SPACE);
+            int type = random.nextInt(100);
+            String context = "operation " + op + " key " + key;
+            int expected = copies.getOrDefault(key, 0);
+            if (type < 45) {
+                tree.insert(key, "v" + key + "." + op);
+                copies.put(key, expected + 1);
+                size++;
+            } else if (type < 90) {
+                check(tree.remove(key) == expected > 0, context + ": remove with " + expected + " copies");
+                if (expected > 0) {
+                    copies.put(key, expected - 1);
+                    size--;
+                }
+            } else if (type < 98) {
+                check(tree.find(key) != null == expected > 0, context + ": find with " + expected + " copies");
+            } else {
+                List<Integer> keys = new ArrayList<>();
+                for (int i = random.nextInt(4); i >= 0; i--) {
+                    keys.add(key);
+                }
+                int removed = Math.min(expected, keys.size());
+                check(tree.removeAll(keys) == removed, context + ": removeAll with " + expected + " copies");
+                copies.put(key, expected - removed);
+                size -= removed;
+            }
+
+            if (op % VERIFY_INTERVAL == 0) {
+                tree.verify();
+                check(tree.size() == size, context + ": size " + tree.size() + " instead of " + size);
+            }
+        }
+        tree.verify();
+        check(tree.size() == size, "final size " + tree.size() + " instead of " + size);
+    }
+
+    /**
+     * Applies random operations to the tree and to a TreeMap, comparing every result.
+     *
+     * @param tree   empty tree to test
+     * @param index  secondary index of the tree, null for none
+     * @param random source of the operations
+     */
+    private void runTree(BPlusTree<Integer, String> tree, SecondaryIndex<Integer, String, Integer> index,
+                         Random random) {
+        TreeMap<Integer, String> model = new TreeMap<>();
+        for (int op = 0; op < this.operations; op++) {
+            int key = random.nextInt(KEY_SPACE);
+            int type = random.nextInt(100);
+            String context = "operation " + op + " key " + key;
+            if (type < 35) {
+                String value = "v" + key + "." + op;
+                if (model.containsKey(key)) {
+                    check(tree.modify(key, value), context + ": modify missed the key");
+                } else {
+                    tree.insert(key, value);
+                }
+                model.put(key, value);
+            } else if (type < 60) {
+                check(tree.remove(key) == (model.remove(key) != null), context + ": remove");
+            } else if (type < 85) {
+                String expected = model.get(key);
+                String found = tree.find(key);
+                check(expected == null ? found == null : expected.equals(found),
+                        context + ": find returned " + found + " instead of " + expected);
+            } else if (type < 90) {
+                int to = key + random.nextInt(64);
+                checkRange(tree.entries(key, to).map(pair -> pair.getKey() + "=" + pair.getVal())
+                        .collect(Collectors.toList()), model.subMap(key, to), context + ": entries to " + to);
+                check(tree.countRange(key, to) == model.subMap(key, to).size(), context + ": countRange to " + to);
+            } else if (type < 93) {
+                check(tree.rank(key) == model.headMap(key).size(), context + ": rank");
+                if (!model.isEmpty()) {
+                    int position = random.nextInt(model.size());
+                    Integer expected = nth(model, position);
+                    check(expected.equals(tree.select(position).getKey()), context + ": select " + position);
+                }
+            } else if (type < 95) {
+                Integer expected = model.ceilingKey(key);
+                BPlusTree<Integer, String>.Cursor cursor = tree.cursor();
+                cursor.seek(key);
+                check(expected == null ? !cursor.isValid() : cursor.isValid() && expected.equals(cursor.getKey()),
+                        context + ": cursor seek");
+            } else if (type < 97) {
+                int to = key + random.nextInt(32);
+                int expected = model.subMap(key, to).size();
+                model.subMap(key, to).clear();
+                check(tree.removeRange(key, to) == expected, context + ": removeRange to " + to);
+            } else if (type < 99) {
+                List<Integer> keys = new ArrayList<>();
+                for (int k = key; k < key + 64; k += 1 + random.nextInt(4)) {
+                    keys.add(k);
+                }
+                int expected = 0;
+                for (Integer k : keys) {
+                    if (model.remove(k) != null) expected++;
+                }
+                check(tree.removeAll(keys) == expected, context + ": removeAll");
+            } else {
+                double targetFill = 0.05 + 0.95 * random.nextDouble();
+                tree.compact(targetFill);
+                context += ": compact to " + targetFill;
+            }
+
+            if (op % VERIFY_INTERVAL == 0) {
+                tree.verify();
+                check(tree.size() == model.size(), context + ": size " + tree.size() + " instead of " + model.size());
+            }
+        }
+
+        tree.verify();
+        checkRange(tree.entries().map(pair -> pair.getKey() + "=" + pair.getVal()).collect(Collectors.toList()),
+                model, "final entries");
+        if (index != null) {
+            for (int attribute = 0; attribute < 8; attribute++) {
+                int expected = 0;
+                for (String value : model.values()) {
+                    if (attribute(value) == attribute) expected++;
+                }
+                check(index.find(attribute).size() == expected, "secondary index of attribute " + attribute);
+            }
+        }
+    }
+
+    /**
+     * Applies random operations to a PartitionedBPlusTree from several threads at once, comparing every result with
+     * a ConcurrentSkipListMap.
+     *
+     * @param threads number of threads
+     */
+    public void runMultiThreaded(int threads) throws Exception {
+        PartitionedBPlusTree<Integer, String> tree = new PartitionedBPlusTree<>(1, 4, 1, 8,
+                List.of(KEY_SPACE / 4, KEY_SPACE / 2), MAX_PARTITION_SIZE);
+        ConcurrentSkipListMap<Integer, String> model = new ConcurrentSkipListMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int owner = i;
+                Random random = new Random(this.seed + owner);
+                futures.add(pool.submit(() -> {
+                    runThread(tree, model, owner, threads, random);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        tree.verify();
+        checkRange(tree.entries(null, null).map(pair -> pair.getKey() + "=" + pair.getVal())
+                .collect(Collectors.toList()), model, "Seed " + this.seed + ": final entries");
+        check(tree.size() == model.size(), "Seed " + this.seed + ": size");
+    }
+
+    /**
+     * Applies random operations to the keys owned by one thread.
+     *
+     * @param tree    tree shared by all the threads
+     * @param model   map shared by all the threads
+     * @param owner   index of the thread
+     * @param threads number of threads
+     * @param random  source of the operations
+     */
+    private void runThread(PartitionedBPlusTree<Integer, String> tree, ConcurrentSkipListMap<Integer, String> model,
+                           int owner, int threads, Random random) {
+        for (int op = 0; op < this.operations; op++) {
+            int key = random.nextInt(KEY_SPACE / threads) * threads + owner;
+            int type = random.nextInt(100);
+            String context = "Seed " + this.seed + ", thread " + owner + " operation " + op + " key " + key;
+            if (type < 40) {
+                String value = "v" + key + "." + op;
+                if (model.containsKey(key)) {
+                    check(tree.modify(key, value), context + ": modify missed the key");
+                } else {
+                    tree.insert(key, value);
+                }
+                model.put(key, value);
+            } else if (type < 65) {
+                check(tree.remove(key) == (model.remove(key) != null), context + ": remove");
+            } else if (type < 95) {
+                String expected = model.get(key);
+                String found = tree.find(key);
+                check(expected == null ? found == null : expected.equals(found),
+                        context + ": find returned " + found + " instead of " + expected);
+            } else if (type < 99) {
+                // Other threads change their own keys during the scan, only the owned keys are predictable.
+                int to = key + 256;
+                List<String> scanned = tree.entries(key, to)
+                        .filter(pair -> pair.getKey() % threads == owner)
+                        .map(pair -> pair.getKey() + "=" + pair.getVal())
+                        .collect(Collectors.toList());
+                NavigableMap<Integer, String> owned = new TreeMap<>();
+                model.subMap(key, to).forEach((k, v) -> {
+                    if (k % threads == owner) owned.put(k, v);
+                });
+                checkRange(scanned, owned, context + ": entries to " + to);
+            } else if (owner == 0) {
+                tree.compact(0.5 + 0.5 * random.nextDouble());
+            } else {
+                tree.verify();
+            }
+        }
+    }
+
+    /**
+     * @param value value of a pair
+     * @return attribute indexed by the secondary index.
+     */
+    private static Integer attribute(String value) {
+        return value.length() % 8;
+    }
+
+    /**
+     * @param model    map to look in
+     * @param position position of the key, from 0 to size() - 1
+     * @return key at the position in key order.
+     */
+    private static Integer nth(TreeMap<Integer, String> model, int position) {
+        Iterator<Integer> keys = model.keySet().iterator();
+        for (int i = 0; i < position; i++) {
+            keys.next();
+        }
+        return keys.next();
+    }
+
+    /**
+     * @param actual   pairs of the tree formatted as key=value, in key order
+     * @param expected pairs of the model
+     * @param context  description of the operation
+     */
+    private static void checkRange(List<String> actual, Map<Integer, String> expected, String context) {
+        List<String> formatted = expected.entrySet().stream()
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.toList());
+        check(actual.equals(formatted), context + ": " + actual.size() + " pairs instead of " + formatted.size());
+    }
+
+    /**
+     * @param condition condition that must hold
+     * @param message   description of the failure
+     */
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    /**
+     * Stores the values of the value blocks as UTF-8.
+     */
+    private static class Utf8Codec implements ValueCodec<String> {
+
+        @Override
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] data, int offset, int length) {
+            return new String(data, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+}
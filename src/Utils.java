@@ -11,6 +11,8 @@ public class Utils {
 
     // Key value separator regex.
     private static final String KEY_VALUE_SEPARATOR = " {8}";  // 8 white space.
+    // Key value separator written by save.
+    private static final String KEY_VALUE_SEPARATOR_TEXT = "        ";
 
     /**
      * Returns and absolute file path of a relative 'filePath'
@@ -18,7 +20,7 @@ public class Utils {
      * @param filePath A relative file path from root.
      * @return A valid absolute file path.
      */
-    private static String getAbsoluteFilePath(String filePath) {
+    static String getAbsoluteFilePath(String filePath) {
         return Paths.get(".").toAbsolutePath().normalize().toString()
                 + File.separator + filePath;
     }
@@ -32,12 +34,35 @@ public class Utils {
     public static void loadBPlusTreeFromFile(String filePath, BPlusTree<String, String> tree) throws IOException {
         String absoluteFilePath = getAbsoluteFilePath(filePath);
         Files.lines(Paths.get(absoluteFilePath)).forEach(line -> {
-            String[] values = line.split(KEY_VALUE_SEPARATOR, 2);
-            if (values.length != 2) {
-                throw new IllegalArgumentException("Input file contains invalid formatted line: " + line);
-            }
-            tree.insert(values[0], values[1]);
+            Pair<String, String> pair = parseLine(line);
+            tree.insert(pair.getKey(), pair.getVal());
         });
+        tree.rebuildNegativeLookupFilter();
+    }
+
+    /**
+     * Parses a line of a data file.
+     *
+     * @param line line in the format as listed in the README.md
+     * @return key and value of the line.
+     */
+    static Pair<String, String> parseLine(String line) {
+        String[] values = line.split(KEY_VALUE_SEPARATOR, 2);
+        if (values.length != 2) {
+            throw new IllegalArgumentException("Input file contains invalid formatted line: " + line);
+        }
+        return new Pair<>(values[0], values[1]);
+    }
+
+    /**
+     * Formats a pair as a line of a data file.
+     *
+     * @param key   key of the pair
+     * @param value value of the pair
+     * @return line in the format as listed in the README.md, including the line break.
+     */
+    static String formatLine(String key, String value) {
+        return key + KEY_VALUE_SEPARATOR_TEXT + value + "\n";
     }
 
     /**
@@ -47,11 +72,12 @@ public class Utils {
      * @param tree     A BPlusTree to store into the file.
      */
     public static void saveBPlusTreeFromFile(String filePath, BPlusTree<String, String> tree) throws IOException {
+        tree.flushWriteBuffers();
         FileWriter writer = new FileWriter(getAbsoluteFilePath(filePath));
         BPlusTree<String, String>.LeafNode current = tree.getLeftLeafNode();
         while (current != null) {
             for (int i = 0; i < current.degree; i++) {
-                writer.write(current.keys.get(i) + "        " + current.values.get(i) + "\n");
+                writer.write(formatLine(current.keys.get(i), current.values.get(i)));
             }
             current = current.right;
         }
@@ -0,0 +1,20 @@
+public interface ValueCodec<V> {
+
+    /**
+     * Encodes a value into the bytes kept inside a value block.
+     *
+     * @param value value to encode
+     * @return encoded value.
+     */
+    byte[] encode(V value);
+
+    /**
+     * Decodes a value encoded by encode.
+     *
+     * @param data   bytes holding the encoded value
+     * @param offset offset of the encoded value inside data
+     * @param length number of bytes of the encoded value
+     * @return the value.
+     */
+    V decode(byte[] data, int offset, int length);
+}
@@ -0,0 +1,207 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ValueDictionary {
+    // Separator between the words of a value.
+    private static final String WORD_SEPARATOR = " ";
+    // Capacity of the id table of an empty dictionary, a power of two.
+    private static final int MIN_TABLE_CAPACITY = 16;
+    // Estimated bytes of the dictionary and the headers of its arrays.
+    private static final int DICTIONARY_BYTES = 80;
+
+    // UTF-8 bytes of all the words one after the other in id order, followed by unused capacity.
+    private byte[] wordBytes;
+    // End offset inside wordBytes of the word with the same id.
+    private int[] wordEnds;
+    // Number of distinct words.
+    private int size;
+    // Open addressing table of word ids plus one, indexed by the hash of the word bytes. 0 marks a free slot.
+    // Kept at most half full.
+    private int[] table;
+    // Number of UTF-8 bytes of all the encoded values.
+    private long rawBytes;
+    // Number of bytes all the values were encoded into.
+    private long encodedBytes;
+
+    /**
+     * Create a new empty ValueDictionary.
+     */
+    public ValueDictionary() {
+        this.wordBytes = new byte[0];
+        this.wordEnds = new int[MIN_TABLE_CAPACITY];
+        this.size = 0;
+        this.table = new int[MIN_TABLE_CAPACITY];
+        this.rawBytes = 0;
+        this.encodedBytes = 0;
+    }
+
+    /**
+     * Encodes a value as the variable length ids of its words. Repetitive values such as "AILERON SKIN" and
+     * "REAR AILERON SKIN" share their words inside the dictionary.
+     *
+     * @param value value to encode
+     * @return encoded value.
+     */
+    public byte[] encode(String value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length() / 2 + 1);
+        for (String word : value.split(WORD_SEPARATOR, -1)) {
+            writeVarInt(out, idOf(word.getBytes(StandardCharsets.UTF_8)));
+        }
+        byte[] encoded = out.toByteArray();
+        this.rawBytes += value.getBytes(StandardCharsets.UTF_8).length;
+        this.encodedBytes += encoded.length;
+        return encoded;
+    }
+
+    /**
+     * Decodes a value encoded by this dictionary.
+     *
+     * @param encoded encoded value
+     * @return the value.
+     */
+    public String decode(byte[] encoded) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream(8 * encoded.length);
+        int i = 0;
+        boolean first = true;
+        while (i < encoded.length) {
+            int id = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = encoded[i++];
+                id |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            // Separator goes between words, including empty ones.
+            if (!first) value.write(' ');
+            int start = start(id);
+            value.write(this.wordBytes, start, this.wordEnds[id] - start);
+            first = false;
+        }
+        return value.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return number of distinct words inside the dictionary.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return estimated number of heap bytes taken by the dictionary, including the unused capacity of its arrays.
+     */
+    public long estimateBytes() {
+        return DICTIONARY_BYTES + this.wordBytes.length + (long) Integer.BYTES * (this.wordEnds.length + this.table.length);
+    }
+
+    /**
+     * @return number of UTF-8 bytes of all the encoded values.
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * @return number of bytes all the values were encoded into.
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * Returns the id of a word, adding the word if it is new.
+     *
+     * @param word UTF-8 bytes of the word
+     * @return id of the word.
+     */
+    private int idOf(byte[] word) {
+        int mask = this.table.length - 1;
+        for (int slot = hash(word, 0, word.length) & mask; ; slot = (slot + 1) & mask) {
+            int id = this.table[slot] - 1;
+            if (id < 0) {
+                id = add(word);
+                this.table[slot] = id + 1;
+                if (2 * this.size > this.table.length) {
+                    growTable();
+                }
+                return id;
+            }
+            int start = start(id);
+            if (Arrays.equals(this.wordBytes, start, this.wordEnds[id], word, 0, word.length)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Appends a new word.
+     *
+     * @param word UTF-8 bytes of the word
+     * @return id of the word.
+     */
+    private int add(byte[] word) {
+        int start = start(this.size);
+        if (start + word.length > this.wordBytes.length) {
+            this.wordBytes = Arrays.copyOf(this.wordBytes, Math.max(start + word.length, 2 * this.wordBytes.length));
+        }
+        System.arraycopy(word, 0, this.wordBytes, start, word.length);
+        if (this.size == this.wordEnds.length) {
+            this.wordEnds = Arrays.copyOf(this.wordEnds, 2 * this.size);
+        }
+        this.wordEnds[this.size] = start + word.length;
+        return this.size++;
+    }
+
+    /**
+     * Doubles the id table and places every word again.
+     */
+    private void growTable() {
+        this.table = new int[2 * this.table.length];
+        int mask = this.table.length - 1;
+        for (int id = 0; id < this.size; id++) {
+            int slot = hash(this.wordBytes, start(id), this.wordEnds[id]) & mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * @param id id of a word, or size for the end of the used bytes
+     * @return start offset of the word inside wordBytes.
+     */
+    private int start(int id) {
+        return id == 0 ? 0 : this.wordEnds[id - 1];
+    }
+
+    /**
+     * @param data bytes holding the word
+     * @param from offset of the first byte of the word
+     * @param to   offset after the last byte of the word
+     * @return hash of the word, with the high bits spread to the low ones used by the table.
+     */
+    private static int hash(byte[] data, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + data[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Writes an unsigned variable length integer, 7 bits per byte.
+     *
+     * @param out   stream to write to
+     * @param value value to write
+     */
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
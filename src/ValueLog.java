@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class ValueLog implements AutoCloseable {
+    // Size of the length header written before every record.
+    private static final int HEADER_SIZE = Integer.BYTES;
+
+    // Location of the log file.
+    private final Path path;
+    // Channel of the log file.
+    private final FileChannel channel;
+    // Offset at which the next record is appended.
+    private long end;
+    // Number of bytes taken by records that are no longer referenced.
+    private long deadBytes;
+
+    /**
+     * Opens a new empty ValueLog, truncating the file if it exists.
+     *
+     * @param path location of the log file
+     */
+    public ValueLog(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.end = 0;
+        this.deadBytes = 0;
+    }
+
+    /**
+     * Opens an existing ValueLog whose live records end at end.
+     *
+     * @param path location of the log file
+     * @param end  offset at which the next record is appended
+     */
+    public ValueLog(Path path, long end) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.end = end;
+        this.deadBytes = 0;
+    }
+
+    /**
+     * Appends a record at the end of the log.
+     *
+     * @param data bytes to store
+     * @return offset of the record.
+     */
+    public long append(byte[] data) throws IOException {
+        long offset = this.end;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        buffer.putInt(data.length).put(data).flip();
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+        this.end = position;
+        return offset;
+    }
+
+    /**
+     * Reads the record at offset.
+     *
+     * @param offset offset returned by append
+     * @param length number of bytes of the record
+     * @return bytes of the record.
+     */
+    public byte[] read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = offset + HEADER_SIZE;
+        while (buffer.hasRemaining()) {
+            int read = this.channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Value log " + this.path + " ends before record at " + offset);
+            }
+            position += read;
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Marks the record as no longer referenced so garbage collection can reclaim it.
+     *
+     * @param length number of bytes of the record
+     */
+    public void markDead(int length) {
+        this.deadBytes += HEADER_SIZE + length;
+    }
+
+    /**
+     * @return size of the log in bytes.
+     */
+    public long getSize() {
+        return end;
+    }
+
+    /**
+     * @return number of bytes taken by records that are no longer referenced.
+     */
+    public long getDeadBytes() {
+        return deadBytes;
+    }
+
+    /**
+     * @return location of the log file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Forces the appended records to the disk.
+     */
+    public void sync() throws IOException {
+        this.channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
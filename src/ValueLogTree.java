@@ -0,0 +1,446 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+public class ValueLogTree<K extends Comparable<K>> implements AutoCloseable {
+    // Logger for background garbage collection failures.
+    private static final Logger LOGGER = Logger.getLogger(ValueLogTree.class.getName());
+    // Number of dictionary words below which the background collector ignores the dictionary growth.
+    private static final int MIN_DICTIONARY_WORDS = 4096;
+
+    // Tree holding the keys and either the value itself or its location inside the value log. Values are packed into
+    // one value block per leaf node.
+    private final BPlusTree<K, StoredValue> tree;
+    // Values whose stored encoding is longer than this number of bytes are stored inside the value log.
+    private final int valueThreshold;
+    // Dictionary compressing the values, both inline and inside the value log. Null if compression is disabled.
+    // Rebuilt from the live values by every garbage collection, so words of removed values do not stay forever.
+    private ValueDictionary dictionary;
+    // Number of dictionary words right after the last garbage collection.
+    private int collectedDictionaryWords;
+    // Append only log holding the large values.
+    private ValueLog log;
+    // Background garbage collector. Null if not started.
+    private ScheduledExecutorService collector;
+    // Number of garbage collections done.
+    private int garbageCollections;
+
+    /**
+     * Create a new ValueLogTree.
+     *
+     * @param internalNodeMinDegree minimum number of nodes internal node can contain
+     * @param internalNodeMaxDegree maximum number of nodes internal node can contain
+     * @param minNumberOfValues     minimum number of values that leaf node can contain
+     * @param maxNumberOfValues     maximum number of values that leaf node can contain
+     * @param logPath               location of the value log file
+     * @param valueThreshold        values longer than this number of bytes are stored inside the value log
+     */
+    public ValueLogTree(int internalNodeMinDegree,
+                        int internalNodeMaxDegree,
+                        int minNumberOfValues,
+                        int maxNumberOfValues,
+                        Path logPath,
+                        int valueThreshold) throws IOException {
+        this(internalNodeMinDegree, internalNodeMaxDegree, minNumberOfValues, maxNumberOfValues,
+                logPath, valueThreshold, false);
+    }
+
+    /**
+     * Create a new ValueLogTree.
+     *
+     * @param internalNodeMinDegree minimum number of nodes internal node can contain
+     * @param internalNodeMaxDegree maximum number of nodes internal node can contain
+     * @param minNumberOfValues     minimum number of values that leaf node can contain
+     * @param maxNumberOfValues     maximum number of values that leaf node can contain
+     * @param logPath               location of the value log file
+     * @param valueThreshold        values longer than this number of bytes are stored inside the value log
+     * @param compressValues        True to store values encoded by a shared word dictionary, otherwise as UTF-8.
+     *                              Values are only decoded when find or entries returns them.
+     */
+    public ValueLogTree(int internalNodeMinDegree,
+                        int internalNodeMaxDegree,
+                        int minNumberOfValues,
+                        int maxNumberOfValues,
+                        Path logPath,
+                        int valueThreshold,
+                        boolean compressValues) throws IOException {
+        this.tree = new BPlusTree<>(internalNodeMinDegree, internalNodeMaxDegree, minNumberOfValues, maxNumberOfValues);
+        this.tree.enableValueBlocks(new StoredValueCodec());
+        this.valueThreshold = valueThreshold;
+        this.dictionary = compressValues ? new ValueDictionary() : null;
+        this.log = new ValueLog(logPath);
+        this.collectedDictionaryWords = 0;
+        this.collector = null;
+        this.garbageCollections = 0;
+    }
+
+    /**
+     * @return the tree holding the keys.
+     */
+    public BPlusTree<K, StoredValue> getTree() {
+        return tree;
+    }
+
+    /**
+     * @return the value log.
+     */
+    public synchronized ValueLog getLog() {
+        return log;
+    }
+
+    /**
+     * @return dictionary compressing the values, null if compression is disabled.
+     */
+    public synchronized ValueDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return number of garbage collections done.
+     */
+    public synchronized int getGarbageCollections() {
+        return garbageCollections;
+    }
+
+    /**
+     * Finds the key.
+     *
+     * @param key key to look for
+     * @return Value if key is found otherwise null
+     */
+    public synchronized String find(K key) {
+        StoredValue stored = this.tree.find(key);
+        return stored == null ? null : load(stored);
+    }
+
+    /**
+     * Inserts the key and value. Large values are appended to the value log.
+     *
+     * @param key   key for the value
+     * @param value value to insert
+     */
+    public synchronized void insert(K key, String value) {
+        this.tree.insert(key, store(value));
+    }
+
+    /**
+     * Removes the value associated with the key.
+     *
+     * @param key key to look for
+     * @return True if key was removed otherwise false.
+     */
+    public synchronized boolean remove(K key) {
+        StoredValue stored = this.tree.find(key);
+        if (!this.tree.remove(key)) {
+            return false;
+        }
+        release(stored);
+        return true;
+    }
+
+    /**
+     * Modifies value of a key.
+     *
+     * @param key   key to modify
+     * @param value new value for the key
+     * @return True if modify was successful otherwise false.
+     */
+    public synchronized boolean modify(K key, String value) {
+        StoredValue stored = this.tree.find(key);
+        if (stored == null) {
+            return false;
+        }
+        this.tree.modify(key, store(value));
+        release(stored);
+        return true;
+    }
+
+    /**
+     * Returns the keys inside [from, to) without reading any value.
+     *
+     * @param from lowest key to return (inclusive), null for no lower bound.
+     * @param to   key to stop at (exclusive), null for no upper bound.
+     * @return keys in key order.
+     */
+    public synchronized List<K> keys(K from, K to) {
+        return this.tree.entries(from, to).map(Pair::getKey).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the pairs inside [from, to). Values are only read for the returned pairs.
+     *
+     * @param from lowest key to return (inclusive), null for no lower bound.
+     * @param to   key to stop at (exclusive), null for no upper bound.
+     * @return pairs in key order.
+     */
+    public synchronized List<Pair<K, String>> entries(K from, K to) {
+        return this.tree.entries(from, to)
+                .map(pair -> new Pair<>(pair.getKey(), load(pair.getVal())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Rewrites the value log keeping only the values still referenced by the tree and points the tree to the new
+     * locations. With compression the values are also encoded again by a new dictionary holding only their words.
+     */
+    public synchronized void collectGarbage() throws IOException {
+        Path path = this.log.getPath();
+        Path compacted = Paths.get(path + ".compact");
+        ValueLog oldLog = this.log;
+        ValueLog newLog = new ValueLog(compacted);
+
+        ValueDictionary newDictionary = this.dictionary != null ? new ValueDictionary() : null;
+
+        // Copy the live values first so the tree is untouched if copying fails.
+        List<StoredValue> rewritten = new ArrayList<>();
+        try {
+            for (Iterator<Pair<K, StoredValue>> it = this.tree.entries().iterator(); it.hasNext(); ) {
+                StoredValue stored = it.next().getVal();
+                if (newDictionary != null && (stored.inline != null || !stored.isInline())) {
+                    rewritten.add(store(load(stored), newDictionary, newLog));
+                } else if (!stored.isInline()) {
+                    rewritten.add(new StoredValue(null,
+                            newLog.append(oldLog.read(stored.offset, stored.length)), stored.length));
+                } else {
+                    rewritten.add(stored);
+                }
+            }
+            newLog.sync();
+        } catch (IOException e) {
+            newLog.close();
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+
+        // Swap the files before touching the tree. Until the tree is repointed the old log stays open, so a failed
+        // move or reopen leaves the tree reading the old records.
+        try {
+            newLog.close();
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+        ValueLog reopened = new ValueLog(path, newLog.getSize());
+
+        // Point the tree to the new locations, in the same key order.
+        Iterator<StoredValue> values = rewritten.iterator();
+        this.tree.replaceAll((key, stored) -> values.next());
+        this.log = reopened;
+        if (newDictionary != null) {
+            this.dictionary = newDictionary;
+            this.collectedDictionaryWords = newDictionary.size();
+        }
+        oldLog.close();
+        garbageCollections++;
+    }
+
+    /**
+     * Starts a background thread which collects garbage whenever dead values take more than deadRatio of the log, or
+     * the dictionary grew to twice its words after the last collection.
+     *
+     * @param period    time between two checks
+     * @param unit      unit of period
+     * @param deadRatio fraction of dead bytes, between 0 and 1, which triggers a collection
+     */
+    public synchronized void startBackgroundGarbageCollection(long period, TimeUnit unit, double deadRatio) {
+        if (this.collector != null) return;
+        this.collector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "value-log-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.collector.scheduleWithFixedDelay(() -> {
+            synchronized (this) {
+                boolean deadLog = this.log.getSize() > 0 && this.log.getDeadBytes() > deadRatio * this.log.getSize();
+                boolean grownDictionary = this.dictionary != null
+                        && this.dictionary.size() > 2 * Math.max(this.collectedDictionaryWords, MIN_DICTIONARY_WORDS);
+                if (deadLog || grownDictionary) {
+                    try {
+                        collectGarbage();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Value log garbage collection failed", e);
+                    }
+                }
+            }
+        }, period, period, unit);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.collector != null) {
+            this.collector.shutdownNow();
+            this.collector = null;
+        }
+        this.log.close();
+    }
+
+    /**
+     * Keeps small values inline and appends large values to the value log.
+     *
+     * @param value value to store
+     * @return value or location to keep inside the tree.
+     */
+    private StoredValue store(String value) {
+        try {
+            return store(value, this.dictionary, this.log);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param value      value to store
+     * @param dictionary dictionary encoding the value, null if compression is disabled
+     * @param log        value log receiving the large values
+     * @return value or location to keep inside the tree.
+     */
+    private StoredValue store(String value, ValueDictionary dictionary, ValueLog log) throws IOException {
+        if (value == null) {
+            return new StoredValue(null, -1, 0);
+        }
+        byte[] data = dictionary != null ? dictionary.encode(value) : value.getBytes(StandardCharsets.UTF_8);
+        if (data.length <= this.valueThreshold) {
+            return new StoredValue(data, -1, 0);
+        }
+        return new StoredValue(null, log.append(data), data.length);
+    }
+
+    /**
+     * @param stored value or location kept inside the tree
+     * @return the value.
+     */
+    private String load(StoredValue stored) {
+        if (stored.isInline()) {
+            return stored.inline != null ? decode(stored.inline) : null;
+        }
+        try {
+            return decode(this.log.read(stored.offset, stored.length));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param data bytes of an inline value or of a value log record
+     * @return the value.
+     */
+    private String decode(byte[] data) {
+        return this.dictionary != null ? this.dictionary.decode(data) : new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return estimated number of heap bytes the values take: the value blocks of the leaf nodes, including their
+     * headers and unused capacity, and the dictionary.
+     */
+    public synchronized long getValueMemoryBytes() {
+        return this.tree.getValueBlockBytes() + (this.dictionary != null ? this.dictionary.estimateBytes() : 0);
+    }
+
+    /**
+     * @return number of bytes of the live records of the value log.
+     */
+    public synchronized long getLiveLogBytes() {
+        return this.log.getSize() - this.log.getDeadBytes();
+    }
+
+    /**
+     * Marks the log record of a value that is no longer referenced as dead.
+     *
+     * @param stored value or location that was removed from the tree
+     */
+    private void release(StoredValue stored) {
+        if (stored != null && !stored.isInline()) {
+            this.log.markDead(stored.length);
+        }
+    }
+
+    /**
+     * Value kept inside the leaf nodes: either the value itself or its location inside the value log. Leaf nodes hold
+     * it encoded by StoredValueCodec, a StoredValue is only created when a pair is read.
+     */
+    public static class StoredValue {
+        // The dictionary encoded value with compression, otherwise its UTF-8 bytes. Null if the value is inside the
+        // value log or is null.
+        private final byte[] inline;
+        // Offset of the record inside the value log, -1 if the value is inline.
+        private final long offset;
+        // Length of the record inside the value log.
+        private final int length;
+
+        private StoredValue(byte[] inline, long offset, int length) {
+            this.inline = inline;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return True if the value is stored inside the leaf node otherwise false.
+         */
+        public boolean isInline() {
+            return offset < 0;
+        }
+
+        @Override
+        public String toString() {
+            if (!isInline()) return "@" + offset + "+" + length;
+            return inline != null ? inline.length + " inline bytes" : "null";
+        }
+    }
+
+    /**
+     * Encodes a StoredValue into a value block as a tag byte followed by the inline bytes, or by the offset and length
+     * of the value log record.
+     */
+    private static class StoredValueCodec implements ValueCodec<StoredValue> {
+        // Tag of a null value.
+        private static final byte NULL = 0;
+        // Tag of a value stored inline.
+        private static final byte INLINE = 1;
+        // Tag of a value stored inside the value log.
+        private static final byte LOGGED = 2;
+
+        @Override
+        public byte[] encode(StoredValue value) {
+            if (!value.isInline()) {
+                return ByteBuffer.allocate(1 + Long.BYTES + Integer.BYTES)
+                        .put(LOGGED).putLong(value.offset).putInt(value.length).array();
+            }
+            if (value.inline == null) {
+                return new byte[]{NULL};
+            }
+            byte[] data = new byte[1 + value.inline.length];
+            data[0] = INLINE;
+            System.arraycopy(value.inline, 0, data, 1, value.inline.length);
+            return data;
+        }
+
+        @Override
+        public StoredValue decode(byte[] data, int offset, int length) {
+            switch (data[offset]) {
+                case INLINE:
+                    return new StoredValue(Arrays.copyOfRange(data, offset + 1, offset + length), -1, 0);
+                case LOGGED:
+                    ByteBuffer buffer = ByteBuffer.wrap(data, offset + 1, length - 1);
+                    return new StoredValue(null, buffer.getLong(), buffer.getInt());
+                default:
+                    return new StoredValue(null, -1, 0);
+            }
+        }
+    }
+}
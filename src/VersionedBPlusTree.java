@@ -0,0 +1,470 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Multi version tree. Every put and remove commits a new version of the key with the next commit timestamp, so reads
+ * as of any retained timestamp see a consistent state of the whole tree while updates go on.
+ *
+ * <p>The inner tree holds one version chain per key, newest version first. Updating an existing key only prepends a
+ * version to its chain, so the key is never missing in between. Point reads are optimistic and only fall back to the
+ * read lock if a write raced with them. Scans read the tree in chunks under the read lock and evaluate versions
+ * outside of it.
+ */
+public class VersionedBPlusTree<K extends Comparable<K>, V> {
+    // Number of keys a scan reads from the tree under a single read lock.
+    private static final int SCAN_CHUNK_SIZE = 256;
+
+    // Version chain of every key ever written and not yet collected.
+    private final BPlusTree<K, VersionChain<V>> tree;
+    // Writers take the write lock, readers read optimistically or under the read lock.
+    private final StampedLock lock;
+    // Number of timestamps of history kept even if no snapshot needs them.
+    private final long retention;
+    // Timestamp of the open snapshots and how many snapshots share it.
+    private final TreeMap<Long, Integer> snapshots;
+    // Timestamp of the last commit. Only advanced once the committed version is visible.
+    private volatile long clock;
+    // Versions visible before this timestamp may have been collected.
+    private volatile long horizon;
+    // Number of versions collected.
+    private long collectedVersions;
+
+    /**
+     * Create a new VersionedBPlusTree keeping only the history open snapshots need.
+     *
+     * @param internalNodeMinDegree minimum number of nodes internal node can contain
+     * @param internalNodeMaxDegree maximum number of nodes internal node can contain
+     * @param minNumberOfValues     minimum number of values that leaf node can contain
+     * @param maxNumberOfValues     maximum number of values that leaf node can contain
+     */
+    public VersionedBPlusTree(int internalNodeMinDegree,
+                              int internalNodeMaxDegree,
+                              int minNumberOfValues,
+                              int maxNumberOfValues) {
+        this(internalNodeMinDegree, internalNodeMaxDegree, minNumberOfValues, maxNumberOfValues, 0);
+    }
+
+    /**
+     * Create a new VersionedBPlusTree.
+     *
+     * @param internalNodeMinDegree minimum number of nodes internal node can contain
+     * @param internalNodeMaxDegree maximum number of nodes internal node can contain
+     * @param minNumberOfValues     minimum number of values that leaf node can contain
+     * @param maxNumberOfValues     maximum number of values that leaf node can contain
+     * @param retention             number of timestamps of history kept for find as of a timestamp, even if no
+     *                              snapshot needs them
+     */
+    public VersionedBPlusTree(int internalNodeMinDegree,
+                              int internalNodeMaxDegree,
+                              int minNumberOfValues,
+                              int maxNumberOfValues,
+                              long retention) {
+        this.tree = new BPlusTree<>(internalNodeMinDegree, internalNodeMaxDegree, minNumberOfValues, maxNumberOfValues);
+        this.lock = new StampedLock();
+        this.retention = retention;
+        this.snapshots = new TreeMap<>();
+        this.clock = 0;
+        this.horizon = 0;
+        this.collectedVersions = 0;
+    }
+
+    /**
+     * @return timestamp of the last commit.
+     */
+    public long getTimestamp() {
+        return clock;
+    }
+
+    /**
+     * @return oldest timestamp reads can still be done as of.
+     */
+    public long getHorizon() {
+        return horizon;
+    }
+
+    /**
+     * @return number of versions collected.
+     */
+    public long getCollectedVersions() {
+        long stamp = this.lock.readLock();
+        try {
+            return collectedVersions;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Finds the latest value of the key.
+     *
+     * @param key key to look for
+     * @return Value if key is found otherwise null
+     */
+    public V find(K key) {
+        // Reads the newest version, the lock keeps commits in progress out of sight.
+        return find(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Finds the value of the key as of a timestamp.
+     *
+     * @param key  key to look for
+     * @param asOf commit timestamp to read at, not older than the horizon
+     * @return Value the key had right after the commit at asOf, null if it did not exist then.
+     */
+    public V find(K key, long asOf) {
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                V value = findVisible(key, asOf);
+                if (this.lock.validate(stamp)) return value;
+            } catch (RuntimeException e) {
+                // Inconsistent view caused by a concurrent write, retried under the read lock.
+            }
+        }
+        stamp = this.lock.readLock();
+        try {
+            return findVisible(key, asOf);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Inserts the key and value, replacing the value of an existing key as a new version.
+     *
+     * @param key   key for the value
+     * @param value value to insert
+     * @return commit timestamp of the new version.
+     */
+    public long put(K key, V value) {
+        long stamp = this.lock.writeLock();
+        try {
+            return commit(key, value, false);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the key as a new version. Older snapshots still see the key.
+     *
+     * @param key key to remove
+     * @return True if key was removed otherwise false.
+     */
+    public boolean remove(K key) {
+        long stamp = this.lock.writeLock();
+        try {
+            VersionChain<V> chain = this.tree.find(key);
+            if (chain == null || chain.head.deleted) {
+                return false;
+            }
+            commit(key, null, true);
+            return true;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Opens a snapshot of the current state. Versions the snapshot sees are kept until it is closed.
+     *
+     * @return the snapshot, to be closed once the reads are done.
+     */
+    public Snapshot snapshot() {
+        synchronized (this.snapshots) {
+            // Registered together with reading the clock, so no collection can miss the snapshot.
+            long timestamp = this.clock;
+            this.snapshots.merge(timestamp, 1, Integer::sum);
+            return new Snapshot(timestamp);
+        }
+    }
+
+    /**
+     * Collects every version no open snapshot and no retained timestamp can see, and removes keys whose only
+     * remaining version is a remove.
+     *
+     * @return number of versions collected.
+     */
+    public long collectGarbage() {
+        long stamp = this.lock.writeLock();
+        try {
+            long before = this.collectedVersions;
+            long horizon = advanceHorizon();
+            List<K> deletedKeys = new ArrayList<>();
+            this.tree.forEach(null, null, (key, chain) -> {
+                prune(chain, horizon);
+                if (chain.head.deleted && chain.head.older == null && chain.head.timestamp <= horizon) {
+                    deletedKeys.add(key);
+                }
+                return true;
+            });
+            this.tree.removeAll(deletedKeys);
+            this.collectedVersions += deletedKeys.size();
+            return this.collectedVersions - before;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Commits a new version. Needs the write lock.
+     *
+     * @param key     key of the version
+     * @param value   value of the version
+     * @param deleted True if the version removes the key
+     * @return commit timestamp of the new version.
+     */
+    private long commit(K key, V value, boolean deleted) {
+        long timestamp = this.clock + 1;
+        VersionChain<V> chain = this.tree.find(key);
+        if (chain == null) {
+            chain = new VersionChain<>(new Version<>(timestamp, value, deleted, null));
+            this.tree.insert(key, chain);
+        } else {
+            chain.head = new Version<>(timestamp, value, deleted, chain.head);
+            prune(chain, advanceHorizon());
+        }
+        // Publish the timestamp only once its version is visible.
+        this.clock = timestamp;
+        return timestamp;
+    }
+
+    /**
+     * Drops the versions of the chain no read at or after horizon can see. Needs the write lock.
+     *
+     * @param chain   chain to prune
+     * @param horizon oldest timestamp reads can be done as of
+     */
+    private void prune(VersionChain<V> chain, long horizon) {
+        for (Version<V> version = chain.head; version != null; version = version.older) {
+            if (version.timestamp <= horizon) {
+                // Reads as of horizon see this version, reads as of later timestamps see it or newer versions.
+                for (Version<V> older = version.older; older != null; older = older.older) {
+                    this.collectedVersions++;
+                }
+                version.older = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the horizon up to the oldest open snapshot or the retained history, whichever is older.
+     *
+     * @return the new horizon.
+     */
+    private long advanceHorizon() {
+        synchronized (this.snapshots) {
+            long oldest = Math.max(0, this.clock - this.retention);
+            if (!this.snapshots.isEmpty()) oldest = Math.min(oldest, this.snapshots.firstKey());
+            if (oldest > this.horizon) this.horizon = oldest;
+            return this.horizon;
+        }
+    }
+
+    /**
+     * Finds the version of the key visible as of a timestamp. Needs the read lock or an optimistic read.
+     *
+     * @param key  key to look for
+     * @param asOf commit timestamp to read at
+     * @return the value, null if the key did not exist at asOf.
+     */
+    private V findVisible(K key, long asOf) {
+        if (asOf < this.horizon) {
+            throw new IllegalArgumentException("Versions before " + this.horizon + " may have been collected, "
+                    + "open a snapshot to keep reading as of " + asOf);
+        }
+        VersionChain<V> chain = this.tree.find(key);
+        return chain == null ? null : valueAt(chain, asOf);
+    }
+
+    /**
+     * @param chain version chain of a key
+     * @param asOf  commit timestamp to read at
+     * @return value visible as of the timestamp, null if the key did not exist then.
+     */
+    private static <V> V valueAt(VersionChain<V> chain, long asOf) {
+        for (Version<V> version = chain.head; version != null; version = version.older) {
+            if (version.timestamp <= asOf) {
+                return version.deleted ? null : version.value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Consistent read only view of the tree as of the timestamp it was opened at.
+     */
+    public class Snapshot implements AutoCloseable {
+        // Commit timestamp the snapshot reads at.
+        private final long timestamp;
+        // Whether close was called.
+        private boolean closed;
+
+        private Snapshot(long timestamp) {
+            this.timestamp = timestamp;
+            this.closed = false;
+        }
+
+        /**
+         * @return commit timestamp the snapshot reads at.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Finds the key as of the snapshot.
+         *
+         * @param key key to look for
+         * @return Value if key is found otherwise null
+         */
+        public V find(K key) {
+            checkOpen();
+            return VersionedBPlusTree.this.find(key, this.timestamp);
+        }
+
+        /**
+         * Returns the pairs inside [from, to) as of the snapshot. Writers are only blocked while a chunk of keys is
+         * read from the tree, never for the whole scan.
+         *
+         * @param from lowest key to return (inclusive), null for no lower bound.
+         * @param to   key to stop at (exclusive), null for no upper bound.
+         * @return ordered stream of the pairs, valid until the snapshot is closed.
+         */
+        public Stream<Pair<K, V>> entries(K from, K to) {
+            checkOpen();
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                    new SnapshotIterator(from, to, this.timestamp), Spliterator.ORDERED | Spliterator.NONNULL), false);
+        }
+
+        /**
+         * Releases the versions only this snapshot needed. They are dropped by the next writes or collectGarbage.
+         */
+        @Override
+        public void close() {
+            if (this.closed) return;
+            this.closed = true;
+            synchronized (snapshots) {
+                if (snapshots.merge(this.timestamp, -1, Integer::sum) == 0) snapshots.remove(this.timestamp);
+            }
+        }
+
+        private void checkOpen() {
+            if (this.closed) throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    /**
+     * Iterator over a key range as of a timestamp, reading the version chains from the tree in chunks.
+     */
+    private class SnapshotIterator implements Iterator<Pair<K, V>> {
+        // Key to stop at (exclusive), null for no upper bound.
+        private final K to;
+        // Commit timestamp to read at.
+        private final long asOf;
+        // Pairs of the current chunk not returned yet.
+        private final ArrayDeque<Pair<K, V>> chunk;
+        // Key the next chunk starts at.
+        private K resume;
+        // Whether resume was already returned by the previous chunk.
+        private boolean resumeExclusive;
+        // Whether the tree has no more keys inside the range.
+        private boolean exhausted;
+
+        private SnapshotIterator(K from, K to, long asOf) {
+            this.to = to;
+            this.asOf = asOf;
+            this.chunk = new ArrayDeque<>();
+            this.resume = from;
+            this.resumeExclusive = false;
+            this.exhausted = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.chunk.isEmpty() && !this.exhausted) {
+                readChunk();
+            }
+            return !this.chunk.isEmpty();
+        }
+
+        @Override
+        public Pair<K, V> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return this.chunk.poll();
+        }
+
+        /**
+         * Reads the next chunk of version chains under the read lock, then picks the visible versions.
+         */
+        private void readChunk() {
+            List<K> keys = new ArrayList<>(SCAN_CHUNK_SIZE);
+            List<VersionChain<V>> chains = new ArrayList<>(SCAN_CHUNK_SIZE);
+            long stamp = lock.readLock();
+            try {
+                tree.forEach(this.resume, this.to, (key, chain) -> {
+                    if (this.resumeExclusive && key.compareTo(this.resume) == 0) return true;
+                    keys.add(key);
+                    chains.add(chain);
+                    return keys.size() < SCAN_CHUNK_SIZE;
+                });
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            if (keys.size() < SCAN_CHUNK_SIZE) {
+                this.exhausted = true;
+            } else {
+                this.resume = keys.get(keys.size() - 1);
+                this.resumeExclusive = true;
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                V value = valueAt(chains.get(i), this.asOf);
+                if (value != null) this.chunk.add(new Pair<>(keys.get(i), value));
+            }
+        }
+    }
+
+    /**
+     * Versions of a key, newest first.
+     */
+    private static class VersionChain<V> {
+        // Newest version. Replaced by writers while readers walk the chain.
+        private volatile Version<V> head;
+
+        private VersionChain(Version<V> head) {
+            this.head = head;
+        }
+    }
+
+    /**
+     * A committed value of a key.
+     */
+    private static class Version<V> {
+        // Commit timestamp of the version.
+        private final long timestamp;
+        // Value, null for a remove.
+        private final V value;
+        // True if the version removes the key.
+        private final boolean deleted;
+        // Next older version, cut off once no read can see it.
+        private volatile Version<V> older;
+
+        private Version(long timestamp, V value, boolean deleted, Version<V> older) {
+            this.timestamp = timestamp;
+            this.value = value;
+            this.deleted = deleted;
+            this.older = older;
+        }
+    }
+}